@@ -4,6 +4,8 @@ import com.earth2me.mcperf.config.ConfigHandler;
 import com.earth2me.mcperf.integration.ban.BanIntegration;
 import com.earth2me.mcperf.integration.mute.MuteIntegration;
 import com.earth2me.mcperf.managers.Manager;
+import com.earth2me.mcperf.managers.performance.ChunkManager;
+import com.earth2me.mcperf.managers.performance.EntityManager;
 import com.earth2me.mcperf.util.concurrent.Tasks;
 import org.bukkit.Server;
 import org.bukkit.command.Command;
@@ -161,8 +163,17 @@ public class MCPerfPlugin extends JavaPlugin {
         loadConfiguration();
     }
 
+    private <T extends Manager> T getManager(Class<T> type) {
+        for (Manager manager : managers) {
+            if (type.isInstance(manager)) {
+                return type.cast(manager);
+            }
+        }
+        return null;
+    }
+
     private void sendHelp(CommandSender sender) {
-        sender.sendMessage("/mcperf <help|version|reload>");
+        sender.sendMessage("/mcperf <help|version|reload|entities|chunks>");
     }
 
     private void sendVersion(CommandSender sender) {
@@ -192,6 +203,42 @@ public class MCPerfPlugin extends JavaPlugin {
                         sender.sendMessage("MCPerf reloaded");
                         return true;
 
+                    case "entities": {
+                        if (!sender.isOp() &&
+                                !sender.hasPermission("mcperf.entities") &&
+                                !sender.hasPermission("mcperf.*") &&
+                                !sender.hasPermission("*")) {
+                            return Util.denyPermission(sender);
+                        }
+
+                        EntityManager entityManager = getManager(EntityManager.class);
+                        if (entityManager == null || !entityManager.isEnabled()) {
+                            sender.sendMessage("Entity manager is disabled");
+                            return true;
+                        }
+
+                        entityManager.sendEntityReport(sender);
+                        return true;
+                    }
+
+                    case "chunks": {
+                        if (!sender.isOp() &&
+                                !sender.hasPermission("mcperf.chunks") &&
+                                !sender.hasPermission("mcperf.*") &&
+                                !sender.hasPermission("*")) {
+                            return Util.denyPermission(sender);
+                        }
+
+                        ChunkManager chunkManager = getManager(ChunkManager.class);
+                        if (chunkManager == null || !chunkManager.isEnabled()) {
+                            sender.sendMessage("Chunk manager is disabled");
+                            return true;
+                        }
+
+                        chunkManager.sendChunkReport(sender);
+                        return true;
+                    }
+
                     case "help":
                         sendHelp(sender);
                         return true;
@@ -23,6 +23,10 @@ public class Compat {
         throw new UnsupportedOperationException("Static class");
     }
 
+    public static Version getVersion() {
+        return V;
+    }
+
     public static boolean hasAttributeApi() {
         return V.isGreaterThanOrEqualTo(v_1_9);
     }
@@ -0,0 +1,93 @@
+package com.earth2me.mcperf.compat;
+
+import com.earth2me.mcperf.Util;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Fast paths into CraftBukkit's world internals.  Internal methods are looked up once per world implementation class
+ * and adapted to exact-typed {@link MethodHandle}s.
+ */
+public final class WorldCompat {
+    private static final MethodType UNLOAD_CHUNK_TYPE = MethodType.methodType(Boolean.TYPE, World.class, Integer.TYPE, Integer.TYPE, Boolean.TYPE);
+
+    private static final ClassValue<MethodHandle> unloadChunk0 = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            return findUnloadChunk0(type);
+        }
+    };
+    // World classes whose unloadChunk0 has thrown; logged once each, since callers retry every tick.
+    private static final Set<Class<?>> failedTypes = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private WorldCompat() {
+        throw new UnsupportedOperationException("Static class");
+    }
+
+    /**
+     * Unloads a chunk even if the server would rather keep it, e.g. because a player can see it or a plugin cancelled
+     * the unload event.  There's no fallback: the public API fires the unload event again and would be cancelled the
+     * same way, so callers should try {@link org.bukkit.Chunk#unload(boolean)} first.
+     *
+     * @return whether the chunk was unloaded; false if the server has no usable unloadChunk0
+     */
+    public static boolean forceUnloadChunk(World world, int chunkX, int chunkZ, boolean save) {
+        MethodHandle handle = unloadChunk0.get(world.getClass());
+        if (handle == null) {
+            return false;
+        }
+
+        try {
+            return (boolean) handle.invokeExact(world, chunkX, chunkZ, save);
+        } catch (Throwable throwable) {
+            if (failedTypes.add(world.getClass())) {
+                Bukkit.getLogger().log(Level.WARNING, String.format("[%s] %s.unloadChunk0 threw an exception; further failures won't be logged", Util.NAME, world.getClass().getSimpleName()), throwable);
+            }
+            return false;
+        }
+    }
+
+    private static MethodHandle findUnloadChunk0(Class<?> type) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+        try {
+            // Older builds: unloadChunk0(int x, int z, boolean save, boolean safe)
+            Method method = type.getDeclaredMethod("unloadChunk0", Integer.TYPE, Integer.TYPE, Boolean.TYPE, Boolean.TYPE);
+            method.setAccessible(true);
+            MethodHandle handle = MethodHandles.insertArguments(lookup.unreflect(method), 4, false);
+            return resolved(type, handle);
+        } catch (NoSuchMethodException ignored) {
+            // Try the newer signature below.
+        } catch (IllegalAccessException | RuntimeException e) {
+            return unresolved(type, e);
+        }
+
+        try {
+            // Newer builds: unloadChunk0(int x, int z, boolean save)
+            Method method = type.getDeclaredMethod("unloadChunk0", Integer.TYPE, Integer.TYPE, Boolean.TYPE);
+            method.setAccessible(true);
+            return resolved(type, lookup.unreflect(method));
+        } catch (NoSuchMethodException | IllegalAccessException | RuntimeException e) {
+            return unresolved(type, e);
+        }
+    }
+
+    private static MethodHandle resolved(Class<?> type, MethodHandle handle) {
+        Bukkit.getLogger().info(String.format("[%s] Using %s.unloadChunk0 on server version %s", Util.NAME, type.getSimpleName(), Compat.getVersion()));
+        return handle.asType(UNLOAD_CHUNK_TYPE);
+    }
+
+    private static MethodHandle unresolved(Class<?> type, Exception e) {
+        Bukkit.getLogger().log(Level.WARNING, String.format("[%s] Couldn't find %s.unloadChunk0 on server version %s; chunks can't be force-unloaded", Util.NAME, type.getName(), Compat.getVersion()), e);
+        return null;
+    }
+}
@@ -5,51 +5,173 @@ import com.earth2me.mcperf.config.ConfigSettingSetter;
 import com.earth2me.mcperf.managers.Manager;
 import com.earth2me.mcperf.annotation.ContainsConfig;
 import com.earth2me.mcperf.annotation.Service;
+import com.earth2me.mcperf.managers.creative.blacklist.BlockTable;
+import com.earth2me.mcperf.managers.creative.blacklist.ChunkScanner;
+import com.earth2me.mcperf.managers.creative.blacklist.PendingScans;
+import com.earth2me.mcperf.managers.creative.blacklist.ScanPool;
+import com.earth2me.mcperf.managers.creative.blacklist.ScanResult;
+import com.earth2me.mcperf.managers.creative.blacklist.ScannedChunkStore;
 import lombok.Getter;
+import lombok.Setter;
 import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
 import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.block.Block;
+import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
+import org.bukkit.event.block.BlockPhysicsEvent;
 import org.bukkit.event.block.BlockPlaceEvent;
 import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+import org.bukkit.scheduler.BukkitTask;
 
-import java.util.LinkedList;
+import java.io.File;
+import java.util.ArrayDeque;
 import java.util.List;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Level;
 
 @Service
 @ContainsConfig
 public class BlacklistManager extends Manager {
-    private static final int MAX_BLOCK_ID = 255;
-
+    // Type IDs banned with any data value
     @Getter
+    @Setter
     @ConfigSetting
     private Set<Integer> blocks;
-    private boolean[] optimizedBlocks = new boolean[MAX_BLOCK_ID];
+    // id:data pairs
+    @Getter
+    @Setter
+    @ConfigSetting
+    private List<String> blockData;
+    @Getter
+    @Setter
+    @ConfigSetting
+    private List<String> spawnerTypes;
+    @Getter
+    @Setter
+    @ConfigSetting
+    private List<String> commandPatterns;
+    private BlockTable table = BlockTable.empty();
+
+    @Getter
+    @ConfigSetting
+    private boolean scanCacheEnabled = true;
+    private ScannedChunkStore scannedChunks;
+    private final PendingScans pendingScans = new PendingScans();
+
+    @Getter
+    @ConfigSetting
+    private int scanThreads = 2;
+    @Getter
+    @ConfigSetting
+    private int scanQueueSize = 64;
+    // When the scan queue is full, hold chunks back until there's room rather than skipping them until their next load.
+    @Getter
+    @ConfigSetting
+    private boolean deferScansWhenFull = true;
+    private ScanPool scanPool;
+    private final ArrayDeque<Chunk> deferredScans = new ArrayDeque<>();
+    private final ConcurrentLinkedQueue<ScanResult> scanResults = new ConcurrentLinkedQueue<>();
+    private BukkitTask scanTask;
 
     public BlacklistManager() {
         super("MjIbYmxhY2tsaXN0Cg==");
     }
 
-    @ConfigSettingSetter
-    public void setBlocks(Set<Integer> value) {
-        if (value == null) {
-            return;
+    @Override
+    public void onConfig(FileConfiguration config) {
+        table = BlockTable.build(blocks, blockData, spawnerTypes, commandPatterns, message -> getLogger().warning(String.format("%s: %s", getConfigPath(), message)));
+        resetScannedChunkStore();
+        if (scannedChunks != null) {
+            scannedChunks.setConfigHash(table.getHash());
         }
 
-        this.blocks = value;
+        super.onConfig(config);
+    }
+
+    @ConfigSettingSetter
+    public void setScanCacheEnabled(boolean value) {
+        scanCacheEnabled = value;
+        resetScannedChunkStore();
+    }
+
+    @ConfigSettingSetter
+    public void setScanThreads(int value) {
+        scanThreads = Math.max(1, value);
+        resetScanPool();
+    }
+
+    @ConfigSettingSetter
+    public void setScanQueueSize(int value) {
+        scanQueueSize = Math.max(1, value);
+        resetScanPool();
+    }
 
-        boolean[] blocks = new boolean[MAX_BLOCK_ID];
-        for (int id : value) {
-            if (id <= 0 || id > MAX_BLOCK_ID) {
-                continue;
+    private void resetScannedChunkStore() {
+        // With nothing blacklisted, nothing is scanned, so there's nothing to remember.
+        if (isEnabled() && scanCacheEnabled && !table.isEmpty()) {
+            if (scannedChunks == null) {
+                scannedChunks = new ScannedChunkStore(new File(getPlugin().getDataFolder(), "scanned"), getLogger(), table.getHash());
+                // Chunks loaded in the meantime could have been modified without being invalidated.
+                for (World world : getServer().getWorlds()) {
+                    UUID worldId = world.getUID();
+                    for (Chunk chunk : world.getLoadedChunks()) {
+                        scannedChunks.retain(worldId, chunk.getX(), chunk.getZ());
+                        scannedChunks.invalidate(worldId, chunk.getX(), chunk.getZ());
+                    }
+                }
             }
-            blocks[id] = true;
+        } else if (scannedChunks != null) {
+            scannedChunks.close();
+            scannedChunks = null;
         }
+    }
 
-        this.optimizedBlocks = blocks;
+    private void resetScanPool() {
+        // Scans already queued in the old pool still deliver their results.
+        if (scanPool != null) {
+            scanPool.shutdown();
+            scanPool = null;
+        }
+
+        if (isEnabled()) {
+            scanPool = new ScanPool(scanThreads, scanQueueSize);
+        }
+    }
+
+    @Override
+    protected void onInit() {
+        resetScannedChunkStore();
+        resetScanPool();
+        scanTask = getServer().getScheduler().runTaskTimer(getPlugin(), this::onTick, 1, 1);
+        super.onInit();
+    }
+
+    @Override
+    protected void onDeinit() {
+        if (scannedChunks != null) {
+            scannedChunks.close();
+            scannedChunks = null;
+        }
+        if (scanTask != null) {
+            scanTask.cancel();
+            scanTask = null;
+        }
+        if (scanPool != null) {
+            scanPool.shutdown();
+            scanPool = null;
+        }
+        deferredScans.clear();
+        scanResults.clear();
+        pendingScans.clear();
+
+        super.onDeinit();
     }
 
     @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
@@ -58,19 +180,82 @@ public class BlacklistManager extends Manager {
             return;
         }
 
-        Block block = event.getBlockPlaced();
+        if (isBlacklisted(event.getBlockPlaced())) {
+            event.setCancelled(true);
+            event.setBuild(false);
+        }
+    }
+
+    /**
+     * Checks a live block against the blacklist.  Main thread only.
+     */
+    private boolean isBlacklisted(Block block) {
         // Important for performance
         @SuppressWarnings("deprecation")
         int id = block.getTypeId();
 
-        if (id <= 0 || id >= MAX_BLOCK_ID) {
-            getLogger().log(Level.SEVERE, "Found block ID " + id + ", which is less than 0 or greater than " + MAX_BLOCK_ID);
+        if (id <= 0 || id >= BlockTable.ID_LIMIT || !table.isCandidate(id)) {
+            return false;
+        }
+
+        @SuppressWarnings("deprecation")
+        int data = block.getData() & 0xF;
+
+        switch (table.getCode(id, data)) {
+            case BlockTable.BANNED:
+                return true;
+
+            case BlockTable.INSPECT:
+                return table.isBanned(block.getState());
+
+            default:
+                return false;
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlaced(BlockPlaceEvent event) {
+        if (!isEnabled()) {
             return;
         }
 
-        if (optimizedBlocks[id]) {
-            event.setCancelled(true);
-            event.setBuild(false);
+        invalidate(event.getBlockPlaced());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPhysics(BlockPhysicsEvent event) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        UUID worldId = event.getWorld().getUID();
+        pendingScans.forgetWorld(worldId);
+        deferredScans.removeIf(chunk -> chunk.getWorld().getUID().equals(worldId));
+        if (scannedChunks != null) {
+            scannedChunks.forgetWorld(worldId);
+        }
+    }
+
+    /**
+     * Notes that the block's chunk has changed, so it must be scanned again.
+     */
+    private void invalidate(Block block) {
+        if (table.isEmpty() || scannedChunks == null && pendingScans.getPending() == 0) {
+            return;
+        }
+
+        UUID worldId = block.getWorld().getUID();
+        int x = block.getX() >> 4;
+        int z = block.getZ() >> 4;
+
+        pendingScans.markDirty(worldId, x, z);
+        if (scannedChunks != null) {
+            scannedChunks.invalidate(worldId, x, z);
         }
     }
 
@@ -80,67 +265,139 @@ public class BlacklistManager extends Manager {
             return;
         }
 
-        scanChunk(event.getChunk());
+        Chunk chunk = event.getChunk();
+        if (scannedChunks != null) {
+            scannedChunks.retain(chunk.getWorld().getUID(), chunk.getX(), chunk.getZ());
+        }
+        scanChunk(chunk);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        if (scannedChunks != null) {
+            Chunk chunk = event.getChunk();
+            scannedChunks.release(chunk.getWorld().getUID(), chunk.getX(), chunk.getZ());
+        }
+    }
+
+    private void scanChunk(Chunk chunk) {
+        if (table.isEmpty()) {
+            return;
+        }
+
+        UUID worldId = chunk.getWorld().getUID();
+        int x = chunk.getX();
+        int z = chunk.getZ();
+        if (scannedChunks != null && scannedChunks.isScanned(worldId, x, z)) {
+            return;
+        }
+        if (!pendingScans.begin(worldId, x, z)) {
+            return;
+        }
+
+        // Deferred chunks go first.
+        if (deferredScans.isEmpty() && submitScan(chunk, worldId)) {
+            return;
+        }
+
+        if (deferScansWhenFull) {
+            deferredScans.add(chunk);
+        } else {
+            // Not recorded as scanned, so it's tried again the next time it loads.
+            pendingScans.finish(worldId, x, z);
+        }
+    }
+
+    private boolean submitScan(final Chunk chunk, final UUID worldId) {
+        if (scanPool == null || scanPool.isFull()) {
+            return false;
+        }
+
+        final BlockTable table = this.table;
+        final int maxHeight = chunk.getWorld().getMaxHeight();
+        // Block data only; height maps and biomes are of no use here.
+        final ChunkSnapshot snapshot = chunk.getChunkSnapshot(false, false, false);
+        pendingScans.markSnapshot(worldId, chunk.getX(), chunk.getZ());
+
+        return scanPool.trySubmit(() -> scanResults.add(new ScanResult(chunk, worldId, table.getHash(), scan(snapshot, table, maxHeight))));
     }
 
-    private void scanChunk(final Chunk chunk) {
-        final boolean[] blocks = this.optimizedBlocks;
+    private int[] scan(ChunkSnapshot snapshot, BlockTable table, int maxHeight) {
+        try {
+            return ChunkScanner.scan(snapshot, table, maxHeight);
+        } catch (RuntimeException e) {
+            getLogger().log(Level.SEVERE, String.format("Error scanning chunk (%s, %d, %d) for blacklisted blocks", snapshot.getWorldName(), snapshot.getX(), snapshot.getZ()), e);
+            return null;
+        }
+    }
+
+    private void onTick() {
+        ScanResult result;
+        while ((result = scanResults.poll()) != null) {
+            finishScan(result.getChunk(), result.getWorldId(), result.getTableHash(), result.getFound());
+        }
 
-        getServer().getScheduler().runTaskAsynchronously(getPlugin(), () -> {
+        Chunk chunk;
+        while ((chunk = deferredScans.peek()) != null) {
+            UUID worldId = chunk.getWorld().getUID();
             if (!chunk.isLoaded()) {
-                return;
+                pendingScans.finish(worldId, chunk.getX(), chunk.getZ());
+            } else if (!submitScan(chunk, worldId)) {
+                break;
             }
+            deferredScans.poll();
+        }
+    }
 
-            int maxY = chunk.getWorld().getMaxHeight();
-            final List<Block> removalQueue = new LinkedList<>();
-
-            try {
-                for (int x = 0; x < 16; x++) {
-                    // It's important that we go from top to bottom.  Otherwise, cacti and such will
-                    // break and drop items.
-                    for (int y = maxY; y >= 0; y--) {
-                        for (int z = 0; z < 16; z++) {
-                            Block block = chunk.getBlock(x, y, z);
-                            if (block == null) {
-                                continue;
-                            }
-
-                            // Needed for performance boost
-                            @SuppressWarnings("deprecation") int id = block.getTypeId();
-
-                            // It's efficient for us to compare against zero.
-                            if (id == 0) {
-                                continue;
-                            }
-
-                            if (blocks[id]) {
-                                removalQueue.add(block);
-                            }
-                        }
-                    }
-                }
-            } catch (ArrayIndexOutOfBoundsException e) {
-                getLogger().log(Level.SEVERE, "[MCPerf] Found block ID less than 0 or greater than " + MAX_BLOCK_ID, e);
-                return;
-            }
+    private void finishScan(Chunk chunk, UUID worldId, long tableHash, int[] found) {
+        int x = chunk.getX();
+        int z = chunk.getZ();
+        // Must happen before any removals, which would otherwise mark the chunk as modified.
+        boolean unmodified = pendingScans.finish(worldId, x, z);
+        if (found == null) {
+            return;
+        }
 
-            if (removalQueue.isEmpty()) {
+        if (found.length > 0) {
+            if (!chunk.isLoaded()) {
                 return;
             }
+            removeBlocks(chunk, found);
+        }
 
-            getLogger().log(Level.INFO, String.format("Removing %d blacklisted blocks in chunk (%s, %d, %d)", removalQueue.size(), chunk.getWorld().getName(), chunk.getX(), chunk.getZ()));
+        // Only a scan of the chunk as it is now, against the blacklist as it is now, counts.  Tile entities can change
+        // without a place or physics event (e.g., a spawn egg used on a spawner), so chunks with any are always rescanned.
+        if (unmodified && tableHash == table.getHash() && scannedChunks != null && !hasInspected(found)) {
+            scannedChunks.markScanned(worldId, x, z);
+        }
+    }
 
-            getServer().getScheduler().callSyncMethod(getPlugin(), () -> {
-                if (!chunk.isLoaded()) {
-                    return null;
-                }
+    private static boolean hasInspected(int[] found) {
+        for (int pos : found) {
+            if (ChunkScanner.unpackCode(pos) == BlockTable.INSPECT) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-                for (Block block : removalQueue) {
-                    block.setType(Material.AIR);
-                }
+    private void removeBlocks(Chunk chunk, int[] positions) {
+        if (!chunk.isLoaded()) {
+            return;
+        }
 
-                return null;
-            });
-        });
+        // The chunk may have changed since the snapshot, and the blacklist along with it, so check each block again.
+        int removed = 0;
+        for (int pos : positions) {
+            Block block = chunk.getBlock(ChunkScanner.unpackX(pos), ChunkScanner.unpackY(pos), ChunkScanner.unpackZ(pos));
+            if (isBlacklisted(block)) {
+                block.setType(Material.AIR);
+                removed++;
+            }
+        }
+
+        if (removed > 0) {
+            getLogger().log(Level.INFO, String.format("Removed %d blacklisted blocks in chunk (%s, %d, %d)", removed, chunk.getWorld().getName(), chunk.getX(), chunk.getZ()));
+        }
     }
 }
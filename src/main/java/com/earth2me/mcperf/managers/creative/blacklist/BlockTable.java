@@ -0,0 +1,226 @@
+package com.earth2me.mcperf.managers.creative.blacklist;
+
+import org.bukkit.Material;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.CommandBlock;
+import org.bukkit.block.CreatureSpawner;
+import org.bukkit.entity.EntityType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// The blacklist as lookup tables: a code per (type ID, data) pair, plus a per-type flag so most blocks are ruled out
+// before their data value is read.  INSPECT blocks are decided by their tile entity.
+public final class BlockTable {
+    public static final byte NONE = 0;
+    public static final byte BANNED = 1;
+    public static final byte INSPECT = 2;
+
+    // Snapshots report 12-bit type IDs, so the tables cover all of them and need no bounds checks.
+    public static final int ID_LIMIT = 4096;
+    private static final int DATA_BITS = 4;
+    private static final int DATA_VALUES = 1 << DATA_BITS;
+    private static final String[] COMMAND_BLOCKS = {"COMMAND", "COMMAND_REPEATING", "COMMAND_CHAIN"};
+
+    private final boolean[] candidates = new boolean[ID_LIMIT];
+    private final byte[] codes = new byte[ID_LIMIT << DATA_BITS];
+    private final boolean[] spawnerTypes = new boolean[EntityType.values().length];
+    private final List<Pattern> commandPatterns = new ArrayList<>();
+    private long hash;
+    private boolean empty = true;
+
+    private BlockTable() {
+    }
+
+    public static BlockTable empty() {
+        return new BlockTable();
+    }
+
+    public static BlockTable build(Collection<Integer> blocks, Collection<String> blockData, Collection<String> spawnerTypes, Collection<String> commandPatterns, Consumer<String> warn) {
+        BlockTable table = new BlockTable();
+
+        if (blocks != null) {
+            for (int id : blocks) {
+                if (id <= 0 || id >= ID_LIMIT) {
+                    warn.accept(String.format("Ignoring invalid block ID %d", id));
+                    continue;
+                }
+                table.banAll(id);
+            }
+        }
+
+        if (blockData != null) {
+            for (String entry : blockData) {
+                table.banData(entry, warn);
+            }
+        }
+
+        if (spawnerTypes != null) {
+            boolean any = false;
+            for (String name : spawnerTypes) {
+                EntityType type = findEntityType(name);
+                if (type == null) {
+                    warn.accept(String.format("Ignoring spawner type %s, which isn't an entity type on this server", name));
+                    continue;
+                }
+                table.spawnerTypes[type.ordinal()] = true;
+                any = true;
+            }
+
+            if (any) {
+                table.inspect(Material.MOB_SPAWNER);
+            }
+        }
+
+        if (commandPatterns != null) {
+            for (String regex : commandPatterns) {
+                try {
+                    table.commandPatterns.add(Pattern.compile(regex));
+                } catch (PatternSyntaxException e) {
+                    warn.accept(String.format("Ignoring invalid command pattern %s: %s", regex, e.getDescription()));
+                }
+            }
+
+            if (!table.commandPatterns.isEmpty()) {
+                // Repeating and chain command blocks only exist on newer servers.
+                for (String name : COMMAND_BLOCKS) {
+                    Material material = findMaterial(name);
+                    if (material != null) {
+                        table.inspect(material);
+                    }
+                }
+            }
+        }
+
+        table.hash = table.computeHash();
+        return table;
+    }
+
+    private void banAll(int id) {
+        for (int data = 0; data < DATA_VALUES; data++) {
+            set(id, data, BANNED);
+        }
+    }
+
+    private void banData(String entry, Consumer<String> warn) {
+        String[] parts = entry.split(":", 2);
+        try {
+            int id = Integer.parseInt(parts[0].trim());
+            if (id <= 0 || id >= ID_LIMIT) {
+                warn.accept(String.format("Ignoring %s; invalid block ID", entry));
+                return;
+            }
+
+            if (parts.length == 1) {
+                banAll(id);
+                return;
+            }
+
+            int data = Integer.parseInt(parts[1].trim());
+            if (data < 0 || data >= DATA_VALUES) {
+                warn.accept(String.format("Ignoring %s; invalid data value", entry));
+                return;
+            }
+
+            set(id, data, BANNED);
+        } catch (NumberFormatException e) {
+            warn.accept(String.format("Ignoring %s; expected id or id:data", entry));
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void inspect(Material material) {
+        int id = material.getId();
+        for (int data = 0; data < DATA_VALUES; data++) {
+            // Bans take precedence; there's nothing to inspect.
+            if (codes[id << DATA_BITS | data] == NONE) {
+                set(id, data, INSPECT);
+            }
+        }
+    }
+
+    private void set(int id, int data, byte code) {
+        codes[id << DATA_BITS | data] = code;
+        candidates[id] = true;
+        empty = false;
+    }
+
+    private long computeHash() {
+        // FNV-1a over everything that decides what's removed
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < codes.length; i++) {
+            if (codes[i] != NONE) {
+                hash = (hash ^ i) * 0x100000001b3L;
+                hash = (hash ^ codes[i]) * 0x100000001b3L;
+            }
+        }
+        for (EntityType type : EntityType.values()) {
+            if (spawnerTypes[type.ordinal()]) {
+                hash = (hash ^ type.name().hashCode()) * 0x100000001b3L;
+            }
+        }
+        for (Pattern pattern : commandPatterns) {
+            hash = (hash ^ pattern.pattern().hashCode()) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static EntityType findEntityType(String name) {
+        try {
+            return EntityType.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static Material findMaterial(String name) {
+        try {
+            return Material.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    public long getHash() {
+        return hash;
+    }
+
+    public boolean isCandidate(int id) {
+        return candidates[id];
+    }
+
+    public byte getCode(int id, int data) {
+        return codes[id << DATA_BITS | data];
+    }
+
+    // Main thread only.
+    public boolean isBanned(BlockState state) {
+        if (state instanceof CreatureSpawner) {
+            EntityType type = ((CreatureSpawner) state).getSpawnedType();
+            return type != null && spawnerTypes[type.ordinal()];
+        }
+
+        if (state instanceof CommandBlock) {
+            String command = ((CommandBlock) state).getCommand();
+            if (command == null || command.isEmpty()) {
+                return false;
+            }
+
+            for (Pattern pattern : commandPatterns) {
+                if (pattern.matcher(command).find()) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,81 @@
+package com.earth2me.mcperf.managers.creative.blacklist;
+
+import org.bukkit.ChunkSnapshot;
+
+import java.util.Arrays;
+
+/**
+ * Finds blacklisted blocks in a chunk snapshot.  Safe to call off the main thread, since a snapshot is a private copy of
+ * the chunk's block data.  Matches are returned as packed chunk-relative positions tagged with their
+ * {@link BlockTable} code; see {@link #pack(int, int, int, byte)}.
+ */
+public final class ChunkScanner {
+    public static final int SECTION_HEIGHT = 16;
+    private static final int[] NONE = new int[0];
+
+    private ChunkScanner() {
+        throw new UnsupportedOperationException("Static class");
+    }
+
+    public static int pack(int x, int y, int z, byte code) {
+        return code << 16 | y << 8 | z << 4 | x;
+    }
+
+    public static int unpackX(int pos) {
+        return pos & 0xF;
+    }
+
+    public static int unpackY(int pos) {
+        return pos >>> 8 & 0xFF;
+    }
+
+    public static int unpackZ(int pos) {
+        return pos >>> 4 & 0xF;
+    }
+
+    public static byte unpackCode(int pos) {
+        return (byte) (pos >>> 16);
+    }
+
+    /**
+     * Returns the positions of all blocks in {@code snapshot} that {@code table} bans or wants inspected, ordered from
+     * the top of the chunk down so that removing them in order never leaves an unsupported block (cacti and such) to
+     * break and drop as an item.  Sections with no blocks at all are skipped outright.
+     */
+    @SuppressWarnings("deprecation")
+    public static int[] scan(ChunkSnapshot snapshot, BlockTable table, int maxHeight) {
+        int[] found = NONE;
+        int count = 0;
+
+        for (int section = (maxHeight - 1) / SECTION_HEIGHT; section >= 0; section--) {
+            if (snapshot.isSectionEmpty(section)) {
+                continue;
+            }
+
+            int bottom = section * SECTION_HEIGHT;
+            for (int y = Math.min(bottom + SECTION_HEIGHT, maxHeight) - 1; y >= bottom; y--) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        int id = snapshot.getBlockTypeId(x, y, z);
+                        // Data values are only read for the few types with rules.
+                        if (!table.isCandidate(id)) {
+                            continue;
+                        }
+
+                        byte code = table.getCode(id, snapshot.getBlockData(x, y, z) & 0xF);
+                        if (code == BlockTable.NONE) {
+                            continue;
+                        }
+
+                        if (count == found.length) {
+                            found = Arrays.copyOf(found, Math.max(16, count * 2));
+                        }
+                        found[count++] = pack(x, y, z, code);
+                    }
+                }
+            }
+        }
+
+        return count == found.length ? found : Arrays.copyOf(found, count);
+    }
+}
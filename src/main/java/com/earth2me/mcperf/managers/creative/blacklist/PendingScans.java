@@ -0,0 +1,102 @@
+package com.earth2me.mcperf.managers.creative.blacklist;
+
+import com.earth2me.mcperf.util.ChunkKey;
+import com.earth2me.mcperf.util.LongObjectHashMap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Tracks chunks whose scans are deferred or in flight, and whether they were modified after their snapshot was taken.
+ * A scan of a modified chunk is stale, so it mustn't be recorded as clean.  Main thread only.
+ */
+public final class PendingScans {
+    private final Map<UUID, LongObjectHashMap<Boolean>> pendingByWorld = new HashMap<>();
+    private int pending = 0;
+
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * Starts tracking a scan.
+     *
+     * @return false if a scan of the chunk is already in flight
+     */
+    public boolean begin(UUID worldId, int x, int z) {
+        LongObjectHashMap<Boolean> chunks = pendingByWorld.get(worldId);
+        if (chunks == null) {
+            chunks = new LongObjectHashMap<>();
+            pendingByWorld.put(worldId, chunks);
+        }
+
+        long key = ChunkKey.of(x, z);
+        if (chunks.containsKey(key)) {
+            return false;
+        }
+
+        chunks.put(key, Boolean.FALSE);
+        pending++;
+        return true;
+    }
+
+    /**
+     * Notes that a fresh snapshot of the chunk was taken, so modifications before it no longer matter.
+     */
+    public void markSnapshot(UUID worldId, int x, int z) {
+        LongObjectHashMap<Boolean> chunks = pendingByWorld.get(worldId);
+        if (chunks == null) {
+            return;
+        }
+
+        long key = ChunkKey.of(x, z);
+        if (chunks.containsKey(key)) {
+            chunks.put(key, Boolean.FALSE);
+        }
+    }
+
+    public void markDirty(UUID worldId, int x, int z) {
+        LongObjectHashMap<Boolean> chunks = pendingByWorld.get(worldId);
+        if (chunks == null) {
+            return;
+        }
+
+        long key = ChunkKey.of(x, z);
+        if (chunks.containsKey(key)) {
+            chunks.put(key, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Stops tracking a scan.
+     *
+     * @return true if the chunk wasn't modified while the scan was in flight
+     */
+    public boolean finish(UUID worldId, int x, int z) {
+        LongObjectHashMap<Boolean> chunks = pendingByWorld.get(worldId);
+        if (chunks == null) {
+            return false;
+        }
+
+        Boolean dirty = chunks.remove(ChunkKey.of(x, z));
+        if (dirty == null) {
+            return false;
+        }
+
+        pending--;
+        return !dirty;
+    }
+
+    public void forgetWorld(UUID worldId) {
+        LongObjectHashMap<Boolean> chunks = pendingByWorld.remove(worldId);
+        if (chunks != null) {
+            pending -= chunks.size();
+        }
+    }
+
+    public void clear() {
+        pendingByWorld.clear();
+        pending = 0;
+    }
+}
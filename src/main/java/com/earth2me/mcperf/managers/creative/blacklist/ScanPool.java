@@ -0,0 +1,53 @@
+package com.earth2me.mcperf.managers.creative.blacklist;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of scanner threads behind a bounded queue, so a burst of chunk loads can't spawn threads without
+ * limit.  Scans are submitted from the main thread only, which makes {@link #isFull()} reliable there: workers can only
+ * make room.
+ */
+public final class ScanPool {
+    private final ThreadPoolExecutor executor;
+
+    public ScanPool(int threads, int capacity) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "MCPerf blacklist scanner #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            // Scans must never compete with the main thread.
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        };
+
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(capacity), threadFactory);
+    }
+
+    public boolean isFull() {
+        return executor.getQueue().remainingCapacity() == 0;
+    }
+
+    /**
+     * @return false if the queue is full or the pool has been shut down
+     */
+    public boolean trySubmit(Runnable scan) {
+        try {
+            executor.execute(scan);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stops accepting scans.  Scans already queued still run.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
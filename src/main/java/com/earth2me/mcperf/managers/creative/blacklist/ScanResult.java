@@ -0,0 +1,16 @@
+package com.earth2me.mcperf.managers.creative.blacklist;
+
+import lombok.Value;
+import org.bukkit.Chunk;
+
+import java.util.UUID;
+
+@Value
+public class ScanResult {
+    Chunk chunk;
+    UUID worldId;
+    // Hash of the blacklist the chunk was scanned against.
+    long tableHash;
+    // Packed positions of blacklisted blocks, or null if the scan failed.
+    int[] found;
+}
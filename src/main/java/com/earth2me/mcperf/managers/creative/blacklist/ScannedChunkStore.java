@@ -0,0 +1,253 @@
+package com.earth2me.mcperf.managers.creative.blacklist;
+
+import com.earth2me.mcperf.util.ChunkKey;
+import com.earth2me.mcperf.util.LongObjectHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Remembers which chunks were scanned clean.  One mapped file per 32x32 region: the blacklist hash, then a bit per
+// chunk.  Regions are mapped off-thread while any of their chunks are loaded, and never forced; it's only a cache.
+public final class ScannedChunkStore {
+    private static final int REGION_SHIFT = 5;
+    private static final int REGION_MASK = (1 << REGION_SHIFT) - 1;
+    private static final int HEADER_SIZE = Long.BYTES;
+    private static final int FILE_SIZE = HEADER_SIZE + (1 << REGION_SHIFT * 2) / Byte.SIZE;
+    // Stands in for regions that couldn't be mapped, so the failure is only logged once.
+    private static final ByteBuffer UNAVAILABLE = ByteBuffer.allocate(0);
+
+    private final File folder;
+    private final Logger logger;
+    private final Map<UUID, LongObjectHashMap<Region>> regionsByWorld = new HashMap<>();
+    private final ExecutorService mapper = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MCPerf scanned chunk store");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long configHash;
+
+    public ScannedChunkStore(File folder, Logger logger, long configHash) {
+        this.folder = folder;
+        this.logger = logger;
+        this.configHash = configHash;
+    }
+
+    public void setConfigHash(long configHash) {
+        if (this.configHash == configHash) {
+            return;
+        }
+
+        this.configHash = configHash;
+        for (LongObjectHashMap<Region> regions : regionsByWorld.values()) {
+            regions.forEachValue(region -> {
+                if (region.buffer != null && region.buffer != UNAVAILABLE) {
+                    reset(region.buffer);
+                }
+            });
+        }
+    }
+
+    public void retain(UUID worldId, int x, int z) {
+        LongObjectHashMap<Region> regions = regionsByWorld.get(worldId);
+        if (regions == null) {
+            regions = new LongObjectHashMap<>();
+            regionsByWorld.put(worldId, regions);
+        }
+
+        int regionX = x >> REGION_SHIFT;
+        int regionZ = z >> REGION_SHIFT;
+        long key = ChunkKey.of(regionX, regionZ);
+        Region region = regions.get(key);
+        if (region == null) {
+            Region created = region = new Region();
+            File file = new File(new File(folder, worldId.toString()), String.format("r.%d.%d.scan", regionX, regionZ));
+            mapper.execute(() -> created.mapped = map(file));
+            regions.put(key, region);
+        }
+
+        int bit = bitIndex(x, z);
+        long mask = 1L << bit;
+        if ((region.loaded[bit >>> 6] & mask) == 0) {
+            region.loaded[bit >>> 6] |= mask;
+            region.loadedCount++;
+        }
+    }
+
+    public void release(UUID worldId, int x, int z) {
+        LongObjectHashMap<Region> regions = regionsByWorld.get(worldId);
+        if (regions == null) {
+            return;
+        }
+
+        long key = ChunkKey.of(x >> REGION_SHIFT, z >> REGION_SHIFT);
+        Region region = regions.get(key);
+        if (region == null) {
+            return;
+        }
+
+        int bit = bitIndex(x, z);
+        long mask = 1L << bit;
+        if ((region.loaded[bit >>> 6] & mask) == 0) {
+            return;
+        }
+
+        region.loaded[bit >>> 6] &= ~mask;
+        if (--region.loadedCount == 0) {
+            regions.remove(key);
+        }
+    }
+
+    public boolean isScanned(UUID worldId, int x, int z) {
+        ByteBuffer buffer = getBuffer(worldId, x, z);
+        if (buffer == UNAVAILABLE) {
+            return false;
+        }
+
+        int bit = bitIndex(x, z);
+        return (buffer.get(HEADER_SIZE + (bit >>> 3)) & 1 << (bit & 7)) != 0;
+    }
+
+    public void markScanned(UUID worldId, int x, int z) {
+        ByteBuffer buffer = getBuffer(worldId, x, z);
+        if (buffer == UNAVAILABLE) {
+            return;
+        }
+
+        int bit = bitIndex(x, z);
+        int index = HEADER_SIZE + (bit >>> 3);
+        buffer.put(index, (byte) (buffer.get(index) | 1 << (bit & 7)));
+    }
+
+    public void invalidate(UUID worldId, int x, int z) {
+        LongObjectHashMap<Region> regions = regionsByWorld.get(worldId);
+        if (regions == null) {
+            return;
+        }
+
+        Region region = regions.get(ChunkKey.of(x >> REGION_SHIFT, z >> REGION_SHIFT));
+        if (region == null) {
+            return;
+        }
+
+        int bit = bitIndex(x, z);
+        ByteBuffer buffer = adopt(region);
+        if (buffer == null) {
+            // Still mapping; cleared once it's done.
+            region.invalidated[bit >>> 6] |= 1L << bit;
+            return;
+        }
+        if (buffer == UNAVAILABLE) {
+            return;
+        }
+
+        int index = HEADER_SIZE + (bit >>> 3);
+        byte value = buffer.get(index);
+        byte cleared = (byte) (value & ~(1 << (bit & 7)));
+        if (cleared != value) {
+            buffer.put(index, cleared);
+        }
+    }
+
+    public void forgetWorld(UUID worldId) {
+        regionsByWorld.remove(worldId);
+    }
+
+    public void close() {
+        regionsByWorld.clear();
+        mapper.shutdown();
+    }
+
+    private ByteBuffer getBuffer(UUID worldId, int x, int z) {
+        LongObjectHashMap<Region> regions = regionsByWorld.get(worldId);
+        if (regions == null) {
+            return UNAVAILABLE;
+        }
+
+        Region region = regions.get(ChunkKey.of(x >> REGION_SHIFT, z >> REGION_SHIFT));
+        if (region == null) {
+            return UNAVAILABLE;
+        }
+
+        ByteBuffer buffer = adopt(region);
+        return buffer == null ? UNAVAILABLE : buffer;
+    }
+
+    // Null while the region is still being mapped.
+    private ByteBuffer adopt(Region region) {
+        if (region.buffer != null) {
+            return region.buffer;
+        }
+
+        ByteBuffer buffer = region.mapped;
+        if (buffer == null) {
+            return null;
+        }
+
+        region.buffer = buffer;
+        if (buffer != UNAVAILABLE) {
+            if (buffer.getLong(0) != configHash) {
+                reset(buffer);
+            } else {
+                for (int i = 0; i < region.invalidated.length; i++) {
+                    for (int j = 0; j < Long.SIZE; j += Byte.SIZE) {
+                        int index = HEADER_SIZE + i * Long.BYTES + j / Byte.SIZE;
+                        buffer.put(index, (byte) (buffer.get(index) & ~(region.invalidated[i] >>> j)));
+                    }
+                }
+            }
+        }
+        return buffer;
+    }
+
+    // Runs on the mapper thread.
+    private ByteBuffer map(File file) {
+        try {
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Unable to create " + parent);
+            }
+
+            MappedByteBuffer region;
+            // The mapping stays valid after the channel is closed.
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                region = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+            }
+            return region;
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Unable to map scanned chunk region " + file, e);
+            return UNAVAILABLE;
+        }
+    }
+
+    private void reset(ByteBuffer region) {
+        for (int i = HEADER_SIZE; i < FILE_SIZE; i++) {
+            region.put(i, (byte) 0);
+        }
+        region.putLong(0, configHash);
+    }
+
+    private static int bitIndex(int x, int z) {
+        return (z & REGION_MASK) << REGION_SHIFT | x & REGION_MASK;
+    }
+
+    private static final class Region {
+        // Set by the mapper thread; the main thread only reads it until it's adopted into buffer.
+        volatile ByteBuffer mapped;
+        ByteBuffer buffer;
+        // Which of the region's chunks are loaded, and which were modified before it was mapped, by bit index.
+        final long[] loaded = new long[(1 << REGION_SHIFT * 2) / Long.SIZE];
+        final long[] invalidated = new long[loaded.length];
+        int loadedCount = 0;
+    }
+}
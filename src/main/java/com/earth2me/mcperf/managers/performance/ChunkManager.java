@@ -1,34 +1,44 @@
 package com.earth2me.mcperf.managers.performance;
 
-import com.earth2me.mcperf.Tuple;
 import com.earth2me.mcperf.annotation.ContainsConfig;
 import com.earth2me.mcperf.annotation.Service;
+import com.earth2me.mcperf.compat.WorldCompat;
 import com.earth2me.mcperf.config.ConfigSetting;
 import com.earth2me.mcperf.managers.Manager;
+import com.earth2me.mcperf.managers.performance.chunk.ChunkChurn;
+import com.earth2me.mcperf.managers.performance.chunk.ChunkResidency;
+import com.earth2me.mcperf.managers.performance.chunk.ChunkWeigher;
+import com.earth2me.mcperf.managers.performance.chunk.LoadedChunkSnapshot;
+import com.earth2me.mcperf.managers.performance.chunk.UnloadPlanner;
+import com.earth2me.mcperf.managers.performance.chunk.UnloadPolicy;
+import com.earth2me.mcperf.managers.performance.chunk.UnloadQueue;
+import com.earth2me.mcperf.managers.performance.chunk.WorldChunks;
+import com.earth2me.mcperf.util.ChunkKey;
 import lombok.Getter;
 import lombok.Setter;
 import org.bukkit.Chunk;
+import org.bukkit.Location;
 import org.bukkit.World;
-import org.bukkit.entity.Entity;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventException;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
+import org.bukkit.event.world.ChunkLoadEvent;
 import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.plugin.RegisteredListener;
 import org.bukkit.scheduler.BukkitScheduler;
 import org.bukkit.scheduler.BukkitTask;
 
-import java.lang.invoke.MethodHandle;
-import java.lang.invoke.MethodHandles;
-import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.UUID;
 import java.util.concurrent.*;
 import java.util.logging.Level;
-import java.util.stream.Stream;
 
 @Service
 @ContainsConfig
@@ -53,16 +63,99 @@ public class ChunkManager extends Manager {
     @Setter
     @ConfigSetting
     private int syncTimeout = 5_000;  // ms
+    @Getter
+    @Setter
+    @ConfigSetting
+    private int unloadChunksPerTick = 8;
+    @Getter
+    @Setter
+    @ConfigSetting
+    private long unloadTickBudget = 2_000_000;  // ns
+    @Getter
+    @Setter
+    @ConfigSetting
+    private int unloadLookahead = 32;  // Queued chunks weighed at a time to find the heaviest one to unload
+    @Getter
+    @Setter
+    @ConfigSetting
+    private int forceUnloadIdleTime = 30;  // Seconds a chunk must go unviewed before it can be unloaded
+    @Getter
+    @Setter
+    @ConfigSetting
+    private int chunkHistoryTime = 600;  // Seconds to remember unloaded chunks' load history
+    @Getter
+    @Setter
+    @ConfigSetting
+    private int churnWindow = 60;  // Seconds covered by /mcperf chunks
+    @Getter
+    @Setter
+    @ConfigSetting
+    private int reloadWindow = 30;  // Seconds; a chunk loaded this soon after unloading counts as a reload
+    // Seconds between looking up which plugin cancelled an unload; 0 disables.  The lookup re-fires the event at other
+    // plugins' listeners, which may act on it (e.g., despawning holograms), so it's off unless asked for.
+    @Getter
+    @Setter
+    @ConfigSetting
+    private int cancelSampleInterval = 0;
+
+    private static final int STUCK_ATTEMPTS = 3;
 
-    private MethodHandle mUnloadChunk0;
-    private Method mUnloadChunk0_;
     private BukkitTask forceUnloadTask = null;
+    private BukkitTask unloadQueueTask = null;
     private BukkitScheduler scheduler;
+    private final UnloadPlanner planner = new UnloadPlanner();  // Only used by the async cleanup task
+    private final UnloadQueue unloadQueue = new UnloadQueue();
+    private final ChunkResidency residency = new ChunkResidency();
+    private ChunkChurn churn = new ChunkChurn(60);
+    private ConfigurationSection worldPolicies;
+    private ConfigurationSection environmentPolicies;
+    private final Map<UUID, UnloadPolicy> policies = new HashMap<>();  // Main thread only
+    private long nextCancelSample = 0;
 
     public ChunkManager() {
         super("Znw4Y2h1bmsz");
     }
 
+    @Override
+    public void onConfig(FileConfiguration config) {
+        worldPolicies = config.getConfigurationSection(getConfigPath() + ".worlds");
+        environmentPolicies = config.getConfigurationSection(getConfigPath() + ".environments");
+        policies.clear();
+
+        if (environmentPolicies != null) {
+            for (String key : environmentPolicies.getKeys(false)) {
+                try {
+                    World.Environment.valueOf(key.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    getLogger().warning(String.format("Unknown environment in %s.environments: %s", getConfigPath(), key));
+                }
+            }
+        }
+
+        super.onConfig(config);
+    }
+
+    /**
+     * Resolves the world's unload policy from its own settings, then its environment's, then the global defaults.
+     */
+    private UnloadPolicy getPolicy(World world) {
+        UnloadPolicy policy = policies.get(world.getUID());
+        if (policy != null) {
+            return policy;
+        }
+
+        policy = new UnloadPolicy(forceUnloadRadius, forceUnloadThresholdEnabled ? -1 : 0, forceUnloadIdleTime, world.getKeepSpawnInMemory());
+        if (environmentPolicies != null) {
+            policy = policy.with(environmentPolicies.getConfigurationSection(world.getEnvironment().name().toLowerCase()));
+        }
+        if (worldPolicies != null) {
+            policy = policy.with(worldPolicies.getConfigurationSection(world.getName()));
+        }
+
+        policies.put(world.getUID(), policy);
+        return policy;
+    }
+
     @Override
     protected void onInit() {
         if (forceUnloadTask != null) {
@@ -83,6 +176,16 @@ public class ChunkManager extends Manager {
             getLogger().severe(String.format("[%s] Failed to schedule chunk cleanup every %d ticks", getId(), getForceUnloadInterval()));
         }
 
+        unloadQueue.clear();
+        residency.clear();
+        policies.clear();
+        churn = new ChunkChurn(Math.max(1, churnWindow));
+        nextCancelSample = 0;
+        if (unloadQueueTask != null) {
+            unloadQueueTask.cancel();
+        }
+        unloadQueueTask = scheduler.runTaskTimer(getPlugin(), this::drainUnloadQueue, 1, 1);
+
         super.onInit();
     }
 
@@ -93,6 +196,13 @@ public class ChunkManager extends Manager {
             forceUnloadTask = null;
         }
 
+        if (unloadQueueTask != null) {
+            unloadQueueTask.cancel();
+            unloadQueueTask = null;
+        }
+        unloadQueue.clear();
+        residency.clear();
+
         super.onDeinit();
     }
 
@@ -105,133 +215,64 @@ public class ChunkManager extends Manager {
             getLogger().info(String.format("[%s] Running chunk cleanup", getId()));
         }
 
-        int playerViewSize = forceUnloadRadius * forceUnloadRadius;
-        @SuppressWarnings("UnnecessaryLocalVariable")
-        int spawnSize = playerViewSize;
         int forceUnloadPlayerOverlap = 2;
-        int radius = forceUnloadRadius;
 
         try {
-            List<World> worlds = sync(() -> new LinkedList<>(getServer().getWorlds()));
+            LoadedChunkSnapshot snapshot = sync(() -> {
+                residency.prune(System.currentTimeMillis() - chunkHistoryTime * 1000L);
+                return LoadedChunkSnapshot.capture(getServer(), this::getPolicy, residency);
+            });
+            if (debugEnabled) {
+                getLogger().info(String.format("[%s] Captured %d chunks from %d worlds in %d ns", getId(), snapshot.getChunkCount(), snapshot.getWorlds().size(), snapshot.getCaptureNanos()));
+            }
 
-            for (World world : worlds) {
-                Chunk[] chunks = sync(world::getLoadedChunks);
-                List<Player> players = sync(() -> new ArrayList<>(world.getPlayers()));
-                int allowedChunks = playerViewSize * players.size() / forceUnloadPlayerOverlap + spawnSize;
+            for (WorldChunks world : snapshot.getWorlds()) {
+                long[] chunks = world.getChunks();
+                UnloadPolicy policy = world.getPolicy();
+                int radius = policy.getRadius();
+                int allowedChunks = policy.getThreshold();
+                if (allowedChunks < 0) {
+                    int playerViewSize = radius * radius;
+                    int spawnSize = policy.isKeepSpawn() ? playerViewSize : 0;
+                    allowedChunks = playerViewSize * world.getPlayerCount() / forceUnloadPlayerOverlap + spawnSize;
+                }
 
-                if (forceUnloadThresholdEnabled && chunks.length < allowedChunks) {
+                if (chunks.length < allowedChunks) {
                     if (debugEnabled) {
-                        getLogger().info(String.format("[%s] Skipping world %s with %d of %d allowed chunks", getId(), world.getName(), chunks.length, allowedChunks));
+                        getLogger().info(String.format("[%s] Skipping world %s with %d of %d allowed chunks", getId(), world.getWorldName(), chunks.length, allowedChunks));
                     }
                     continue;
                 }
 
                 if (debugEnabled) {
-                    getLogger().info(String.format("[%s] Running chunk cleanup for %s", getId(), world.getName()));
+                    getLogger().info(String.format("[%s] Running chunk cleanup for %s", getId(), world.getWorldName()));
                 }
 
-                @SuppressWarnings("unchecked")
-                Tuple<Chunk, Tuple<Integer, Integer>>[] chunkLocs = (Tuple<Chunk, Tuple<Integer, Integer>>[]) sync(() -> Arrays.stream(chunks)
-                        .map(c -> new Tuple<>(c, new Tuple<>(c.getX(), c.getZ())))
-                        .toArray(Tuple[]::new)
-                );
-
-                @SuppressWarnings("unchecked")
-                Tuple<Integer, Integer>[] viewers = (Tuple<Integer, Integer>[]) sync(() ->
-                        Stream.concat(
-                                Stream.of(world.getSpawnLocation()),
-                                players.stream()
-                                        .map(Entity::getLocation)
-                                        .filter(l -> world.equals(l.getWorld()))
-                        )
-                                .map(l -> new Tuple<>(l.getBlockX() >> 4, l.getBlockZ() >> 4))
-                                .toArray(Tuple[]::new)
-                );
-
-                List<Chunk> unloadChunks = new LinkedList<>();
-
-                chunk:
-                for (Tuple<Chunk, Tuple<Integer, Integer>> chunkLoc : chunkLocs) {
-                    Tuple<Integer, Integer> chunkLocation = chunkLoc.b;
-                    int chunkX = chunkLocation.a;
-                    int chunkZ = chunkLocation.b;
-
-                    for (Tuple<Integer, Integer> viewer : viewers) {
-                        int viewerX = viewer.a;
-                        int viewerZ = viewer.b;
-
-                        int diffX = Math.abs(chunkX - viewerX);
-                        int diffZ = Math.abs(chunkZ - viewerZ);
-
-                        if (diffX <= radius && diffZ <= radius) {
-                            //if (i++ < 3) {
-                            //    getLogger().info(String.format("[%s] |%d - %d| = %d;  |5d - %d| = %d", getId(), chunkX, viewerX, diffX, chunkZ, viewerZ, diffZ));
-                            //}
-                            continue chunk;
-                        }
-                    }
+                long[] viewers = world.getViewers();
+                int unloadCount = planner.plan(chunks, chunks.length, viewers, viewers.length, radius);
 
-                    unloadChunks.add(chunkLoc.a);
-                }
-
-                if (unloadChunks.isEmpty()) {
+                if (unloadCount == 0) {
                     if (debugEnabled) {
-                        getLogger().info(String.format("[%s] Found %d out of %d chunks that need to be unloaded; not scheduling unload task", getId(), unloadChunks.size(), chunks.length));
+                        getLogger().info(String.format("[%s] Found %d out of %d chunks that need to be unloaded; not queueing", getId(), unloadCount, chunks.length));
                     }
                     continue;
                 }
 
                 if (debugEnabled) {
-                    getLogger().info(String.format("[%s] Found %d out of %d chunks that need to be unloaded; scheduling for unload", getId(), unloadChunks.size(), chunks.length));
+                    getLogger().info(String.format("[%s] Found %d out of %d chunks that need to be unloaded; queueing for unload", getId(), unloadCount, chunks.length));
                 }
 
-                scheduler.scheduleSyncDelayedTask(getPlugin(), () -> {
-                    getLogger().info(String.format("[%s] Forcefully unloading %d chunks from %s", getId(), unloadChunks.size(), world.getName()));
-
-                    for (Chunk chunk : unloadChunks) {
-                        if (!chunk.isLoaded()) {
-                            continue;
-                        }
-
-                        if (debugEnabled) {
-                            getLogger().info(String.format("[%s] Unloading chunk from %s at (%d, %d)", getId(), chunk.getWorld().getName(), chunk.getX(), chunk.getZ()));
-                        }
-
-                        if (mUnloadChunk0 == null) {
-                            try {
-                                MethodHandles.Lookup lookup = MethodHandles.lookup();
-                                Method method = world.getClass().getDeclaredMethod("unloadChunk0", Integer.TYPE, Integer.TYPE, Boolean.TYPE, Boolean.TYPE);
-                                method.setAccessible(true);
-                                mUnloadChunk0_ = method;
-                                mUnloadChunk0 = lookup.unreflect(method);
-                            } catch (NoSuchMethodException e) {
-                                getLogger().log(Level.SEVERE, String.format("[%s] Failed to retrieve method unloadChunk0 via reflection.  Class: %s", getId(), world.getClass().getName()), e);
-                            } catch (IllegalAccessException e) {
-                                getLogger().log(Level.SEVERE, String.format("[%s] Failed to retrieve method unloadChunk0 via invokedynamic", getId()), e);
-                            }
-                        }
-
-                        if (!chunk.unload(true) && mUnloadChunk0 != null) {
-                            try {
-                                // This redundant madness is to please the ProGuard gods.
-                                boolean result = (boolean) mUnloadChunk0.invoke(world, chunk.getX(), chunk.getZ(), true, false);
-                                if (result) {
-                                    continue;
-                                }
-
-                                result = (boolean) mUnloadChunk0_.invoke(world, chunk.getX(), chunk.getZ(), true, false);
-                                if (result) {
-                                    continue;
-                                }
-                            } catch (Throwable throwable) {
-                                getLogger().log(Level.WARNING, String.format("[%s] Spigot's unloadChunk0 threw an exception", getId()), throwable);
-                            }
-
-                            if (debugEnabled) {
-                                getLogger().warning(String.format("[%s] Failed to unload chunk from %s at (%d, %d)", getId(), chunk.getWorld().getName(), chunk.getX(), chunk.getZ()));
-                            }
-                        }
+                long[] unloadChunks = planner.getUnloadOrder(world, snapshot.getCapturedAt() - policy.getIdleTime() * 1000L);
+                if (unloadChunks.length == 0) {
+                    if (debugEnabled) {
+                        getLogger().info(String.format("[%s] All %d chunks outside view were viewed within the last %d seconds; not queueing", getId(), unloadCount, policy.getIdleTime()));
                     }
+                    continue;
+                }
+
+                scheduler.runTask(getPlugin(), () -> {
+                    getLogger().info(String.format("[%s] Queueing %d chunks from %s for unload", getId(), unloadChunks.length, world.getWorldName()));
+                    unloadQueue.replace(world.getWorldId(), unloadChunks);
                 });
             }
         } catch (CancellationException e) {
@@ -247,14 +288,148 @@ public class ChunkManager extends Manager {
         }
     }
 
+    private void drainUnloadQueue() {
+        if (!unloadQueue.isEmpty()) {
+            unloadQueue.drain(unloadChunksPerTick, unloadTickBudget, unloadLookahead, this::weighQueuedChunk, this::unloadQueuedChunk);
+        }
+    }
+
+    private int weighQueuedChunk(UUID worldId, int chunkX, int chunkZ) {
+        World world = getServer().getWorld(worldId);
+        if (world == null || !world.isChunkLoaded(chunkX, chunkZ)) {
+            return -1;
+        }
+
+        int weight = ChunkWeigher.weigh(world.getChunkAt(chunkX, chunkZ));
+        if (weight == ChunkWeigher.PROTECTED && debugEnabled) {
+            getLogger().info(String.format("[%s] Not unloading protected chunk from %s at (%d, %d)", getId(), world.getName(), chunkX, chunkZ));
+        }
+        return weight;
+    }
+
+    private boolean unloadQueuedChunk(UUID worldId, int chunkX, int chunkZ) {
+        World world = getServer().getWorld(worldId);
+        if (world == null || !world.isChunkLoaded(chunkX, chunkZ) || world.isChunkInUse(chunkX, chunkZ)) {
+            return false;
+        }
+
+        // Players may have moved since the plan was made.
+        UnloadPolicy policy = getPolicy(world);
+        int radius = policy.getRadius();
+        Location location = world.getSpawnLocation();
+        if (policy.isKeepSpawn() && isNear(location, chunkX, chunkZ, radius)) {
+            return false;
+        }
+        for (Player player : world.getPlayers()) {
+            if (isNear(player.getLocation(location), chunkX, chunkZ, radius)) {
+                return false;
+            }
+        }
+
+        if (unloadChunk(world, world.getChunkAt(chunkX, chunkZ))) {
+            return true;
+        }
+
+        residency.onUnloadFailed(worldId, chunkX, chunkZ);
+        churn.getWorld(worldId, world.getName()).getFailedUnloads().increment(System.currentTimeMillis());
+        return false;
+    }
+
+    private static boolean isNear(Location location, int chunkX, int chunkZ, int radius) {
+        return Math.abs((location.getBlockX() >> 4) - chunkX) <= radius && Math.abs((location.getBlockZ() >> 4) - chunkZ) <= radius;
+    }
+
+    private boolean unloadChunk(World world, Chunk chunk) {
+        if (debugEnabled) {
+            getLogger().info(String.format("[%s] Unloading chunk from %s at (%d, %d)", getId(), world.getName(), chunk.getX(), chunk.getZ()));
+        }
+
+        if (chunk.unload(true) || WorldCompat.forceUnloadChunk(world, chunk.getX(), chunk.getZ(), true)) {
+            return true;
+        }
+
+        if (debugEnabled) {
+            getLogger().warning(String.format("[%s] Failed to unload chunk from %s at (%d, %d)", getId(), world.getName(), chunk.getX(), chunk.getZ()));
+        }
+        return false;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        Chunk chunk = event.getChunk();
+        World world = chunk.getWorld();
+        long now = System.currentTimeMillis();
+        long lastUnloaded = residency.onLoad(world.getUID(), chunk.getX(), chunk.getZ(), now);
+
+        ChunkChurn.WorldChurn worldChurn = churn.getWorld(world.getUID(), world.getName());
+        worldChurn.getLoads().increment(now);
+        if (lastUnloaded > 0 && now - lastUnloaded <= reloadWindow * 1000L) {
+            worldChurn.getReloads().increment(now);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onChunkUnloaded(ChunkUnloadEvent event) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        Chunk chunk = event.getChunk();
+        World world = chunk.getWorld();
+        long now = System.currentTimeMillis();
+        residency.onUnload(world.getUID(), chunk.getX(), chunk.getZ(), now);
+        churn.getWorld(world.getUID(), world.getName()).getUnloads().increment(now);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        residency.forgetWorld(event.getWorld().getUID());
+        policies.remove(event.getWorld().getUID());
+        unloadQueue.forgetWorld(event.getWorld().getUID());
+        churn.forgetWorld(event.getWorld().getUID());
+    }
+
     @EventHandler(priority = EventPriority.MONITOR)
     public void onChunkUnload(ChunkUnloadEvent event) {
-        if (!isEnabled() || !isDebugEnabled() || !event.isCancelled()) {
+        if (!isEnabled() || !event.isCancelled()) {
+            return;
+        }
+
+        World world = event.getWorld();
+        long now = System.currentTimeMillis();
+        churn.getWorld(world.getUID(), world.getName()).getCancelledUnloads().increment(now);
+
+        // Finding the culprit means re-firing the event at every listener, so only do it occasionally.
+        if (!isDebugEnabled()) {
+            if (cancelSampleInterval <= 0 || now < nextCancelSample) {
+                return;
+            }
+            nextCancelSample = now + cancelSampleInterval * 1000L;
+        }
+
+        RegisteredListener canceller = findCanceller(event);
+        if (canceller == null) {
             return;
         }
 
+        churn.recordCanceller(canceller.getPlugin().getDescription().getName());
+        if (isDebugEnabled()) {
+            getLogger().log(Level.WARNING, String.format(
+                    "Plugin %s canceled ChunkUnloadEvent from %s",
+                    canceller.getPlugin().getDescription().getName(),
+                    canceller.getClass().getCanonicalName()
+            ));
+        }
+    }
+
+    private RegisteredListener findCanceller(ChunkUnloadEvent event) {
         for (RegisteredListener listener : event.getHandlers().getRegisteredListeners()) {
-            if (listener.getListener() == this) {
+            // Monitor listeners aren't allowed to cancel, and would act on an unload that didn't happen.
+            if (listener.getListener() == this || listener.getPriority() == EventPriority.MONITOR) {
                 continue;
             }
 
@@ -268,13 +443,42 @@ public class ChunkManager extends Manager {
             }
 
             if (e.isCancelled()) {
-                getLogger().log(Level.WARNING, String.format(
-                        "Plugin %s canceled ChunkUnloadEvent from %s",
-                        listener.getPlugin().getDescription().getName(),
-                        listener.getClass().getCanonicalName()
-                ));
-                break;
+                return listener;
             }
         }
+
+        return null;
+    }
+
+    public void sendChunkReport(CommandSender sender) {
+        long now = System.currentTimeMillis();
+        sender.sendMessage(String.format("Chunk churn over the last %d seconds; pending forced unloads: %d", churn.getWindowSeconds(), unloadQueue.getPending()));
+
+        for (World world : getServer().getWorlds()) {
+            ChunkChurn.WorldChurn worldChurn = churn.getWorld(world.getUID(), world.getName());
+            sender.sendMessage(String.format(
+                    "- [%s] %d loaded; %d loads, %d unloads, %d reloads within %ds, %d cancelled, %d failed; %d stuck",
+                    world.getName(),
+                    world.getLoadedChunks().length,
+                    worldChurn.getLoads().sum(now),
+                    worldChurn.getUnloads().sum(now),
+                    worldChurn.getReloads().sum(now),
+                    reloadWindow,
+                    worldChurn.getCancelledUnloads().sum(now),
+                    worldChurn.getFailedUnloads().sum(now),
+                    residency.countStuck(world.getUID(), STUCK_ATTEMPTS)
+            ));
+        }
+
+        Map<String, Integer> cancellers = churn.getCancellers();
+        if (cancellers.isEmpty()) {
+            return;
+        }
+
+        StringJoiner joiner = new StringJoiner(", ");
+        cancellers.entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                .forEach(e -> joiner.add(e.getKey() + " " + e.getValue()));
+        sender.sendMessage("Unload cancellations by plugin (sampled): " + joiner);
     }
 }
@@ -5,29 +5,45 @@ import com.earth2me.mcperf.annotation.ContainsConfig;
 import com.earth2me.mcperf.annotation.Service;
 import com.earth2me.mcperf.config.ConfigSetting;
 import com.earth2me.mcperf.managers.Manager;
-import com.google.common.collect.Iterables;
+import com.earth2me.mcperf.managers.performance.entity.ChunkScanQueue;
+import com.earth2me.mcperf.managers.performance.entity.CleanupPlanner;
+import com.earth2me.mcperf.managers.performance.entity.EntityCensus;
+import com.earth2me.mcperf.managers.performance.entity.EntityGroup;
+import com.earth2me.mcperf.managers.performance.entity.EntityLimit;
+import com.earth2me.mcperf.managers.performance.entity.EntitySnapshot;
+import com.earth2me.mcperf.managers.performance.entity.Hotspot;
+import com.earth2me.mcperf.managers.performance.entity.HotspotTracker;
+import com.earth2me.mcperf.managers.performance.entity.RemovalQueue;
+import com.earth2me.mcperf.managers.performance.entity.SpawnMerger;
+import com.earth2me.mcperf.managers.performance.entity.SpawnRateLimiter;
+import com.earth2me.mcperf.util.ChunkKey;
+import com.earth2me.mcperf.util.ChunkSweeper;
 import lombok.Getter;
 import lombok.Setter;
 import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.entity.*;
 import org.bukkit.event.Cancellable;
 import org.bukkit.event.Event;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.entity.*;
+import org.bukkit.event.player.PlayerPickupItemEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.event.vehicle.VehicleCreateEvent;
 import org.bukkit.event.vehicle.VehicleEnterEvent;
 import org.bukkit.event.vehicle.VehicleEvent;
 import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+import org.bukkit.scheduler.BukkitTask;
 
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 
 @Service
 @ContainsConfig
@@ -60,36 +76,272 @@ public final class EntityManager extends Manager {
     @Setter
     @ConfigSetting
     private Set<EntityType> bannedEntityTypes = Collections.emptySet();
+    @Getter
+    @Setter
+    @ConfigSetting
+    private int censusRefreshInterval = 5 * 60 * 20;  // Ticks to recount every loaded chunk once, a slice per tick; 0 disables
+    @Getter
+    @Setter
+    @ConfigSetting
+    private long cleanupTickBudget = 1_000_000;  // ns
+    @Getter
+    @Setter
+    @ConfigSetting
+    private boolean spawnMergeEnabled = true;
+    @Getter
+    @Setter
+    @ConfigSetting
+    private double spawnMergeRadius = 1.5;  // Blocks
+    @Getter
+    @Setter
+    @ConfigSetting
+    private int hotspotSampleInterval = 200;  // Ticks
+    @Getter
+    @Setter
+    @ConfigSetting
+    private int hotspotReportSize = 10;
+    @Getter
+    @Setter
+    @ConfigSetting
+    private double chunkSpawnRate = 20;  // Spawns per second; 0 = unlimited
+    @Getter
+    @Setter
+    @ConfigSetting
+    private int chunkSpawnBurst = 100;
+    @Getter
+    @Setter
+    @ConfigSetting
+    private double playerSpawnRate = 2;  // Spawns per second; 0 = unlimited
+    @Getter
+    @Setter
+    @ConfigSetting
+    private int playerSpawnBurst = 20;
+    @Getter
+    @Setter
+    @ConfigSetting
+    private int playerSpawnRadius = 16;  // Blocks; players this close are held responsible for spawn eggs, breeding, etc.
+    @Getter
+    @Setter
+    @ConfigSetting
+    private long chunkScanTickBudget = 1_000_000;  // ns
+
+    private static final Entity[] NO_ENTITIES = new Entity[0];
 
     private final AtomicBoolean cleanupRunning = new AtomicBoolean(false);
+    private final Map<UUID, EntityCensus> censuses = new HashMap<>();
+    private final ChunkSweeper censusSweeper = new ChunkSweeper();
+    private final RemovalQueue removalQueue = new RemovalQueue();
+    private final ChunkScanQueue chunkScanQueue = new ChunkScanQueue();
+    private final HotspotTracker hotspotTracker = new HotspotTracker();
+    private final SpawnRateLimiter spawnRateLimiter = new SpawnRateLimiter();
+    private long throttledSpawns = 0;
+    private EnumMap<EntityGroup, EntityLimit> limits = createLimits(null);
+    private BukkitTask tickTask;
+    private BukkitTask hotspotTask;
 
     public EntityManager() {
         super("NzYbZW50aXR5Cg==");
     }
 
-    private static boolean isIgnoredEntityType(EntityType entityType) {
-        // Much faster than testing the contents of a list/set.
-        switch (entityType) {
-            case PLAYER:
-            case ITEM_FRAME:
-            case PAINTING:
-            case WEATHER:
-                return true;
+    @Override
+    public void onConfig(FileConfiguration config) {
+        limits = createLimits(config.getConfigurationSection(getConfigPath() + ".limits"));
 
-            default:
-                return false;
-        }
+        super.onConfig(config);
     }
 
-    private static boolean isUnignoredEntity(Entity entity) {
-        return !isIgnoredEntityType(entity.getType());
+    private EnumMap<EntityGroup, EntityLimit> createLimits(ConfigurationSection section) {
+        EnumMap<EntityGroup, EntityLimit> limits = new EnumMap<>(EntityGroup.class);
+
+        for (EntityGroup group : EntityGroup.values()) {
+            // Groups without their own settings fall back to the legacy creature/item limits.
+            boolean creature = group == EntityGroup.HOSTILE || group == EntityGroup.PASSIVE;
+            int nearby = creature ? getNearbyCreatureLimit() : getNearbyItemLimit();
+            int world = creature ? getWorldCreatureLimit() : getWorldItemLimit();
+            int priority = 0;
+
+            ConfigurationSection groupSection = section == null ? null : section.getConfigurationSection(group.name().toLowerCase());
+            if (groupSection != null) {
+                nearby = groupSection.getInt("nearby", nearby);
+                world = groupSection.getInt("world", world);
+                priority = groupSection.getInt("priority", priority);
+            }
+
+            limits.put(group, new EntityLimit(nearby, world, priority));
+        }
+
+        if (section != null) {
+            for (String key : section.getKeys(false)) {
+                try {
+                    EntityGroup.valueOf(key.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    getLogger().warning(String.format("Unknown entity group in %s.limits: %s", getConfigPath(), key));
+                }
+            }
+        }
+
+        return limits;
     }
 
     @Override
     protected void onInit() {
         super.onInit();
 
-        getServer().getWorlds().stream().forEach(this::scanEntities);
+        chunkScanQueue.clear();
+        for (World world : getServer().getWorlds()) {
+            for (Chunk chunk : world.getLoadedChunks()) {
+                chunkScanQueue.add(chunk);
+            }
+        }
+
+        censuses.clear();
+        censusSweeper.clear();
+
+        removalQueue.clear();
+        if (tickTask != null) {
+            tickTask.cancel();
+        }
+        tickTask = getServer().getScheduler().runTaskTimer(getPlugin(), this::onTick, 1, 1);
+
+        spawnRateLimiter.clear();
+        hotspotTracker.clear();
+        if (hotspotTask != null) {
+            hotspotTask.cancel();
+        }
+        if (hotspotSampleInterval > 0) {
+            hotspotTask = getServer().getScheduler().runTaskTimer(getPlugin(), this::sampleHotspots, hotspotSampleInterval, hotspotSampleInterval);
+        }
+    }
+
+    @Override
+    protected void onDeinit() {
+        censuses.clear();
+        censusSweeper.clear();
+
+        if (tickTask != null) {
+            tickTask.cancel();
+            tickTask = null;
+        }
+        removalQueue.clear();
+        chunkScanQueue.clear();
+
+        if (hotspotTask != null) {
+            hotspotTask.cancel();
+            hotspotTask = null;
+        }
+        hotspotTracker.clear();
+        spawnRateLimiter.clear();
+
+        super.onDeinit();
+    }
+
+    private EntityCensus getCensus(World world) {
+        EntityCensus census = censuses.get(world.getUID());
+        if (census == null) {
+            census = new EntityCensus(world);
+            censuses.put(world.getUID(), census);
+        }
+        return census;
+    }
+
+    /**
+     * Recounts the next slice of chunks, correcting drift without a stop-the-world pass over every entity.
+     */
+    private void refreshCensuses() {
+        if (censusRefreshInterval <= 0 || censuses.isEmpty()) {
+            return;
+        }
+
+        censusSweeper.sweep(getServer(), censusRefreshInterval, chunk -> {
+            EntityCensus census = censuses.get(chunk.getWorld().getUID());
+            if (census != null) {
+                census.loadChunk(chunk, chunk.getEntities());
+            }
+        });
+    }
+
+    private void addToCensus(Entity entity) {
+        EntityCensus census = censuses.get(entity.getWorld().getUID());
+        if (census != null) {
+            census.add(entity);
+        }
+    }
+
+    private void removeFromCensus(Entity entity) {
+        EntityCensus census = censuses.get(entity.getWorld().getUID());
+        if (census != null) {
+            census.remove(entity);
+        }
+    }
+
+    private void removeEntity(Entity entity) {
+        removeFromCensus(entity);
+        entity.remove();
+    }
+
+    public int getPendingRemovals() {
+        return removalQueue.getPending();
+    }
+
+    private void sampleHotspots() {
+        hotspotTracker.begin(getHotspotReportSize());
+        for (World world : getServer().getWorlds()) {
+            hotspotTracker.sample(world, getCensus(world));
+        }
+        hotspotTracker.finish();
+    }
+
+    public void sendEntityReport(CommandSender sender) {
+        if (hotspotSampleInterval <= 0) {
+            sender.sendMessage("Hotspot sampling is disabled; set hotspotSampleInterval to enable it.");
+        }
+
+        sender.sendMessage(String.format("Pending entity removals: %d; pending chunk scans: %d; throttled spawns: %d", removalQueue.getPending(), chunkScanQueue.getPending(), throttledSpawns));
+
+        List<Hotspot> hotspots = hotspotTracker.getHotspots();
+        if (hotspots.isEmpty()) {
+            sender.sendMessage("No entity hotspots found yet.");
+            return;
+        }
+
+        EntityGroup[] groups = EntityGroup.values();
+        for (Hotspot hotspot : hotspots) {
+            StringJoiner breakdown = new StringJoiner(", ");
+            for (EntityGroup group : groups) {
+                int count = hotspot.getCounts()[group.ordinal()];
+                if (count > 0) {
+                    breakdown.add(group.name().toLowerCase() + " " + count);
+                }
+            }
+
+            sender.sendMessage(String.format(
+                    "- [%s] (%d, %d): %d entities (%s), %+.1f/min",
+                    hotspot.getWorld(),
+                    hotspot.getChunkX() << 4,
+                    hotspot.getChunkZ() << 4,
+                    hotspot.getTotal(),
+                    breakdown,
+                    hotspot.getGrowthPerMinute()
+            ));
+        }
+    }
+
+    private void onTick() {
+        drainRemovals();
+        refreshCensuses();
+        chunkScanQueue.drain(chunkScanTickBudget, this::scanChunk);
+    }
+
+    private void drainRemovals() {
+        if (removalQueue.isEmpty()) {
+            return;
+        }
+
+        removalQueue.drain(cleanupTickBudget, this::removeEntity);
+
+        if (removalQueue.isEmpty()) {
+            getLogger().info("Entity cleanup finished");
+        }
     }
 
     @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
@@ -102,6 +354,25 @@ public final class EntityManager extends Manager {
         onEntitySpawn(event);
     }
 
+    @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+    public void onGenericEntitySpawn(EntitySpawnEvent event) {
+        if (isGenericSpawn(event)) {
+            onEntitySpawn(event);
+        }
+    }
+
+    /**
+     * Whether the event is a plain {@link EntitySpawnEvent} (experience orbs, falling blocks, armor stands, etc.) rather
+     * than one of the subclasses with handlers of their own.  Vehicles are handled on {@link VehicleCreateEvent}.
+     */
+    private static boolean isGenericSpawn(EntitySpawnEvent event) {
+        return !(event instanceof CreatureSpawnEvent) &&
+                !(event instanceof ItemSpawnEvent) &&
+                // Only a subclass on newer servers.
+                !((Event) event instanceof ProjectileLaunchEvent) &&
+                !(event.getEntity() instanceof Vehicle);
+    }
+
     @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
     public void onProjectileLaunch(ProjectileLaunchEvent event) {  // Doesn't work for fireworks as of writing
         onEntitySpawn(event);
@@ -129,7 +400,14 @@ public final class EntityManager extends Manager {
 
     @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
     public void onVehicleCreate(VehicleCreateEvent event) {
-        onVehicle(event);
+        if (!isEnabled()) {
+            return;
+        }
+
+        Vehicle vehicle = event.getVehicle();
+        if (onEntity(event, vehicle.getType(), vehicle, "Removed vehicle %s at %s")) {
+            limitSpawn(event, vehicle);
+        }
     }
 
     @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
@@ -137,6 +415,97 @@ public final class EntityManager extends Manager {
         onVehicle(event);
     }
 
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onCreatureSpawnMonitor(CreatureSpawnEvent event) {
+        if (isEnabled()) {
+            addToCensus(event.getEntity());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onProjectileLaunchMonitor(ProjectileLaunchEvent event) {
+        if (isEnabled()) {
+            addToCensus(event.getEntity());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onItemSpawnMonitor(ItemSpawnEvent event) {
+        if (isEnabled()) {
+            onSpawned(event.getEntity());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onGenericEntitySpawnMonitor(EntitySpawnEvent event) {
+        if (isEnabled() && isGenericSpawn(event)) {
+            onSpawned(event.getEntity());
+        }
+    }
+
+    private void onSpawned(Entity entity) {
+        // Merging waits until nothing else can cancel the spawn, so targets only ever absorb drops that really spawned.
+        if (isSpawnMergeEnabled() && SpawnMerger.merge(entity, getSpawnMergeRadius())) {
+            entity.remove();
+            return;
+        }
+
+        addToCensus(entity);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onVehicleCreateMonitor(VehicleCreateEvent event) {
+        // Can't be cancelled, but the vehicle may have been removed for breaking a limit.
+        if (isEnabled() && !event.getVehicle().isDead()) {
+            addToCensus(event.getVehicle());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onEntityDeath(EntityDeathEvent event) {
+        if (isEnabled()) {
+            removeFromCensus(event.getEntity());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onItemDespawn(ItemDespawnEvent event) {
+        if (isEnabled()) {
+            removeFromCensus(event.getEntity());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onItemMerge(ItemMergeEvent event) {
+        if (isEnabled()) {
+            removeFromCensus(event.getEntity());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerPickupItem(PlayerPickupItemEvent event) {
+        // Partial pickups leave the item entity behind.
+        if (isEnabled() && event.getRemaining() <= 0) {
+            removeFromCensus(event.getItem());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        censuses.remove(event.getWorld().getUID());
+        hotspotTracker.forget(event.getWorld());
+        spawnRateLimiter.forgetWorld(event.getWorld().getUID());
+        chunkScanQueue.forgetWorld(event.getWorld().getUID());
+        censusSweeper.forgetWorld(event.getWorld().getUID());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        if (isEnabled()) {
+            spawnRateLimiter.forgetPlayer(event.getPlayer().getUniqueId());
+        }
+    }
+
     private void onVehicle(VehicleEvent event) {
         if (!isEnabled()) {
             return;
@@ -164,23 +533,23 @@ public final class EntityManager extends Manager {
             return;
         }
 
-        Location location = entity.getLocation();
-
-        int nearbyLimit, worldLimit;
+        limitSpawn(event, entity);
+    }
 
-        if (entity instanceof Creature) {
-            nearbyLimit = getNearbyCreatureLimit();
-            worldLimit = getWorldCreatureLimit();
-        } else if (entity instanceof Item) {
-            nearbyLimit = getNearbyItemLimit();
-            worldLimit = getWorldItemLimit();
-        } else {
-            // TODO: Separate settings for entities that aren't items or creatures
-            nearbyLimit = getNearbyItemLimit();
-            worldLimit = getWorldItemLimit();
+    private void limitSpawn(Event event, Entity entity) {
+        EntityGroup group = EntityGroup.of(entity);
+        if (group == null) {
+            return;
         }
 
-        if (!canSpawn(location, nearbyLimit, worldLimit)) {
+        Location location = entity.getLocation();
+        EntityLimit limit = limits.get(group);
+
+        if (!canSpawnNow(event, location) || !canSpawn(location, group, limit.getNearby(), limit.getWorld())) {
+            // A rejected drop is folded into a nearby one first, if it fits, so the loot survives the limit.
+            if (isSpawnMergeEnabled()) {
+                SpawnMerger.merge(entity, getSpawnMergeRadius());
+            }
             if (event instanceof Cancellable) {
                 ((Cancellable) event).setCancelled(true);
             }
@@ -188,6 +557,60 @@ public final class EntityManager extends Manager {
         }
     }
 
+    private boolean canSpawnNow(Event event, Location location) {
+        // Only player-driven creature spawns are throttled.  Drops and projectiles mustn't use up a chunk's spawns, and
+        // natural spawning is already capped by the server.
+        if (!(event instanceof CreatureSpawnEvent) || !isPlayerDriven(((CreatureSpawnEvent) event).getSpawnReason())) {
+            return true;
+        }
+
+        World world = location.getWorld();
+        if (!spawnRateLimiter.tryChunk(world.getUID(), ChunkKey.of(location.getBlockX() >> 4, location.getBlockZ() >> 4), chunkSpawnRate, chunkSpawnBurst)) {
+            throttledSpawns++;
+            return false;
+        }
+
+        if (playerSpawnRate > 0) {
+            Player player = getResponsiblePlayer(location);
+            if (player != null && !spawnRateLimiter.tryPlayer(player.getUniqueId(), playerSpawnRate, playerSpawnBurst)) {
+                throttledSpawns++;
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isPlayerDriven(CreatureSpawnEvent.SpawnReason reason) {
+        switch (reason) {
+            case SPAWNER_EGG:
+            case DISPENSE_EGG:
+            case EGG:
+            case BREEDING:
+            case BUILD_SNOWMAN:
+            case BUILD_IRONGOLEM:
+            case BUILD_WITHER:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    private Player getResponsiblePlayer(Location location) {
+        // Bukkit doesn't say who caused these, so blame the closest player.
+        Player nearest = null;
+        double nearestDistance = playerSpawnRadius * playerSpawnRadius;
+        for (Player player : location.getWorld().getPlayers()) {
+            double distance = player.getLocation().distanceSquared(location);
+            if (distance <= nearestDistance) {
+                nearest = player;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
     private boolean onEntity(Event event, EntityType entityType, Entity entity, String format) {
         if (!isEnabled()) {
             return true;
@@ -213,7 +636,7 @@ public final class EntityManager extends Manager {
             if (entity.getPassenger() != null) {
                 entity.eject();
             }
-            entity.remove();
+            removeEntity(entity);
 
             getLogger().warning(String.format(format, entityType, Util.toString(entity.getLocation())));
         } else if (event instanceof Cancellable) {
@@ -224,7 +647,7 @@ public final class EntityManager extends Manager {
 
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onChunkLoad(ChunkLoadEvent event) {
-        if (!isEnabled() || !isChunkLoadScanningEnabled()) {
+        if (!isEnabled()) {
             return;
         }
 
@@ -232,8 +655,30 @@ public final class EntityManager extends Manager {
         onChunkLoad(chunk);
     }
 
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        Chunk chunk = event.getChunk();
+        chunkScanQueue.remove(chunk);
+        EntityCensus census = censuses.get(chunk.getWorld().getUID());
+        if (census != null) {
+            census.unloadChunk(chunk.getX(), chunk.getZ());
+        }
+        spawnRateLimiter.forgetChunk(chunk.getWorld().getUID(), ChunkKey.of(chunk.getX(), chunk.getZ()));
+    }
+
     private void onChunkLoad(Chunk chunk) {
-        scanEntities(chunk.getEntities());
+        // Index the chunk right away so nearby lookups can find it; its entities are counted and scanned once the
+        // queue gets to it.
+        EntityCensus census = censuses.get(chunk.getWorld().getUID());
+        if (census != null) {
+            census.loadChunk(chunk, NO_ENTITIES);
+        }
+
+        chunkScanQueue.add(chunk);
 
         // This is too slow.
         /*
@@ -244,25 +689,24 @@ public final class EntityManager extends Manager {
         */
     }
 
-    private void scanEntities(World world) {
-        for (Chunk chunk : world.getLoadedChunks()) {
-            if (!chunk.isLoaded()) {
-                continue;
-            }
-
-            scanEntities(chunk);
+    private void scanChunk(Chunk chunk) {
+        if (!chunk.isLoaded()) {
+            return;
         }
-    }
 
-    private void scanEntities(Chunk chunk) {
-        scanEntities(chunk.getEntities());
-    }
+        Entity[] entities = chunk.getEntities();
+
+        EntityCensus census = censuses.get(chunk.getWorld().getUID());
+        if (census != null) {
+            census.loadChunk(chunk, entities);
+        }
 
-    private void scanEntities(Entity... entities) {
-        scanEntities(Arrays.asList(entities));
+        if (isChunkLoadScanningEnabled() && !getBannedEntityTypes().isEmpty()) {
+            scanEntities(entities);
+        }
     }
 
-    private void scanEntities(Iterable<Entity> entities) {
+    private void scanEntities(Entity[] entities) {
         for (Entity entity : entities) {
             if (!isBanned(entity.getType())) {
                 continue;
@@ -275,13 +719,23 @@ public final class EntityManager extends Manager {
                 }
             }
 
-            entity.remove();
+            removeEntity(entity);
             getLogger().warning(String.format("Removed banned entity %s at %s", entity.getType().name(), Util.toString(entity.getLocation())));
         }
     }
 
-    private void cleanupWorld(Location location, int limit) {
-        List<Entity> entities = getWorldEntities(location);
+    private static List<Entity> filterGroup(List<Entity> entities, EntityGroup group) {
+        List<Entity> result = new ArrayList<>();
+        for (Entity entity : entities) {
+            if (EntityGroup.of(entity) == group) {
+                result.add(entity);
+            }
+        }
+        return result;
+    }
+
+    private void cleanupWorld(Location location, EntityGroup group, int limit) {
+        List<Entity> entities = filterGroup(getWorldEntities(location), group);
 
         World world = location.getWorld();
         int count = entities.size();
@@ -290,8 +744,8 @@ public final class EntityManager extends Manager {
             return;
         }
 
-        getLogger().warning(String.format("Too many entities (%d > %d) in world [%s]; running cleanup", count, limit, world.getName()));
-        cleanup(entities, limit);
+        getLogger().warning(String.format("Too many %s entities (%d > %d) in world [%s]; running cleanup", group.name(), count, limit, world.getName()));
+        cleanup(world, entities, limit);
     }
 
     private List<Entity> getWorldEntities(Location location) {
@@ -302,76 +756,50 @@ public final class EntityManager extends Manager {
         return world.getEntities();
     }
 
-    private Iterable<Entity> getNearbyEntities(Location location) {
-        World world = location.getWorld();
-        int x = location.getBlockX() >> 4;
-        int z = location.getBlockZ() >> 4;
+    private List<Entity> getNearbyEntities(Location location) {
         int radius = getNearbyChunkRadius();
+        int diameter = radius * 2 + 1;
+        List<Entity> entities = new ArrayList<>(diameter * diameter * 8);
 
-        Iterable<Entity> entities = Collections.emptyList();
-
-        Chunk[] loadedChunks = world.getLoadedChunks();
-        Chunk[] nearbyChunks = Arrays.stream(loadedChunks).filter(c ->
-                c.getX() >= x - radius && c.getX() <= x + radius &&
-                        c.getZ() >= z - radius && c.getZ() <= z + radius
-        ).toArray(Chunk[]::new);
-
-        for (Chunk chunk : nearbyChunks) {
-            entities = Iterables.concat(entities, Arrays.asList(chunk.getEntities()));
-        }
-
+        getCensus(location.getWorld()).collectNearbyEntities(location.getBlockX() >> 4, location.getBlockZ() >> 4, radius, entities);
         return entities;
     }
 
-    private void cleanupNearby(Location location, int limit) {
-        Iterable<Entity> entities = getNearbyEntities(location);
+    private void cleanupNearby(Location location, EntityGroup group, int limit) {
+        List<Entity> entities = filterGroup(getNearbyEntities(location), group);
 
         World world = location.getWorld();
         int x = location.getBlockX() >> 4;
         int z = location.getBlockZ() >> 4;
-        getLogger().warning(String.format("Too many entities at (%s, %d, %d); running cleanup", world.getName(), x << 4, z << 4));
+        getLogger().warning(String.format("Too many %s entities at (%s, %d, %d); running cleanup", group.name(), world.getName(), x << 4, z << 4));
 
-        cleanup(Iterables.unmodifiableIterable(entities), limit);
+        cleanup(world, entities, limit);
     }
 
-    private static Stream<Entity> filteredEntityStream(Iterable<Entity> entities) {
-        return StreamSupport.stream(entities.spliterator(), true)
-                .filter(EntityManager::isUnignoredEntity);
-    }
+    private void cleanup(World world, List<Entity> entities, int limit) {
+        // Capture on the main thread; the live entities mustn't be read from the async planner.
+        EntitySnapshot snapshot = EntitySnapshot.capture(world, entities, this::getPriority);
 
-    private void cleanup(Iterable<Entity> entities, int limit) {
         getServer().getScheduler().runTaskAsynchronously(getPlugin(), () -> {
             try {
-                List<EntityType> problemTypes = getProblematicEntityTypes(filteredEntityStream(entities), limit);
+                CleanupPlanner planner = new CleanupPlanner(snapshot, limit);
+                int[] victims = planner.plan();
 
-                if (problemTypes.isEmpty()) {
+                if (planner.getTopType() == null) {
                     getLogger().warning("Assertion failed; couldn't find any entities after grouping and sorting");
                     // Shouldn't typically happen
                     return;
                 }
 
-                getLogger().warning(String.format("Top problem entity type: %s", problemTypes.get(0).name()));
+                getLogger().warning(String.format("Top problem entity type: %s", planner.getTopType().name()));
 
-                if (problemTypes.get(0) == EntityType.PLAYER) {
-                    // If players are the primary cause, we shouldn't start deleting everything.
+                if (victims.length == 0) {
                     return;
                 }
-                problemTypes.remove(EntityType.PLAYER);
-
-                // Evaluate immediately
-                final List<Entity> toRemove = new ArrayList<>(Arrays.asList(filteredEntityStream(entities)
-                        .filter(entity -> problemTypes.contains(entity.getType()))
-                        .toArray(Entity[]::new)));
-
-                if (toRemove.size() >= 10) {
-                    for (int i = 0; i < 5; i++) {
-                        toRemove.remove(toRemove.size() - 1);
-                    }
-                }
 
-                getServer().getScheduler().callSyncMethod(getPlugin(), () -> {
-                    toRemove.forEach(Entity::remove);
-                    return null;
+                getServer().getScheduler().runTask(getPlugin(), () -> {
+                    removalQueue.submit(snapshot, victims);
+                    getLogger().info(String.format("Queued %d entities for removal; %d pending", victims.length, removalQueue.getPending()));
                 });
             } finally {
                 // Run at most every 2 seconds.
@@ -381,43 +809,9 @@ public final class EntityManager extends Manager {
         });
     }
 
-    private static int getPriority(EntityType entityType) {
+    private int getPriority(EntityType entityType) {
         // The algorithm will delete entity types with lower priority values first.
-        // It's best to avoid adding values here; it can really mess things up.
-        switch (entityType) {
-            default:
-                return 0;
-        }
-    }
-
-    // Warning: This will include players!
-    private List<EntityType> getProblematicEntityTypes(Stream<Entity> entities, int limit) {
-        Map<EntityType, Long> counts = entities.collect(Collectors.groupingBy(Entity::getType, Collectors.counting()));
-        long total = counts.values().stream().collect(Collectors.summingLong(i -> i));
-
-        Stream<Map.Entry<EntityType, Long>> sorted = counts.entrySet().stream().sorted((a, b) -> {
-            int priorityA = getPriority(a.getKey());
-            int priorityB = getPriority(b.getKey());
-
-            // Sort by priority ascending, then by count descending
-            return priorityA == priorityB ? Long.compare(b.getValue(), a.getValue()) : Integer.compare(priorityA, priorityB);
-        });  // Reverse sort
-
-        return sorted.filter(new Predicate<Map.Entry<EntityType, Long>>() {
-            private int removing = 0;
-            private boolean first = true;
-
-            @Override
-            public boolean test(Map.Entry<EntityType, Long> entry) {
-                if (!first && total - removing <= limit) {
-                    return false;
-                }
-
-                removing += entry.getValue();
-                first = false;
-                return true;
-            }
-        }).map(Map.Entry::getKey).collect(Collectors.toList());
+        return limits.get(EntityGroup.of(entityType)).getPriority();
     }
 
     private boolean isBanned(EntityType type) {
@@ -429,45 +823,27 @@ public final class EntityManager extends Manager {
     }
 
     @SuppressWarnings("RedundantIfStatement")
-    private boolean canSpawn(final Location location, int nearbyLimit, int worldLimit) {
+    private boolean canSpawn(final Location location, EntityGroup group, int nearbyLimit, int worldLimit) {
+        EntityCensus census = getCensus(location.getWorld());
+
         // We want nearby cleanup to take priority, so check locally first.
-        int nearbyEntities = countNearbyEntities(location, nearbyLimit);
+        int nearbyEntities = census.count(location.getBlockX() >> 4, location.getBlockZ() >> 4, getNearbyChunkRadius(), group);
         if (nearbyEntities >= nearbyLimit) {
-            if (!cleanupRunning.getAndSet(true)) {
-                cleanupNearby(location, nearbyLimit);
+            // Let queued removals drain before deciding what else needs to go.
+            if (removalQueue.isEmpty() && !cleanupRunning.getAndSet(true)) {
+                cleanupNearby(location, group, nearbyLimit);
             }
             return false;
         }
 
-        int worldEntities = countWorldEntities(location, worldLimit);
+        int worldEntities = census.total(group);
         if (worldEntities >= worldLimit) {
-            if (!cleanupRunning.getAndSet(true)) {
-                cleanupWorld(location, worldLimit);
+            if (removalQueue.isEmpty() && !cleanupRunning.getAndSet(true)) {
+                cleanupWorld(location, group, worldLimit);
             }
             return false;
         }
 
         return true;
     }
-
-    private int countEntities(Iterable<Entity> entities, int limit) {
-        // Attempt quick count when entities is of type List<T> or similar
-        if (entities instanceof Collection) {
-            int count = ((Collection<Entity>) entities).size();
-
-            if (count < limit) {
-                return count;
-            }
-        }
-
-        return (int) filteredEntityStream(entities).count();
-    }
-
-    private int countWorldEntities(Location location, int limit) {
-        return countEntities(getWorldEntities(location), limit);
-    }
-
-    private int countNearbyEntities(Location location, int limit) {
-        return countEntities(getNearbyEntities(location), limit);
-    }
 }
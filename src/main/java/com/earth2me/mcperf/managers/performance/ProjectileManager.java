@@ -5,20 +5,34 @@ import com.earth2me.mcperf.config.ConfigSettingSetter;
 import com.earth2me.mcperf.managers.Manager;
 import com.earth2me.mcperf.annotation.ContainsConfig;
 import com.earth2me.mcperf.annotation.Service;
+import com.earth2me.mcperf.managers.performance.projectile.AgeTable;
+import com.earth2me.mcperf.managers.performance.projectile.AgeWheel;
+import com.earth2me.mcperf.util.ChunkSweeper;
 import lombok.Getter;
 import lombok.Setter;
+import org.bukkit.Chunk;
 import org.bukkit.World;
-import org.bukkit.entity.Creature;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
 import org.bukkit.entity.Firework;
 import org.bukkit.entity.Projectile;
+import org.bukkit.event.Event;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
+import org.bukkit.event.entity.EntitySpawnEvent;
+import org.bukkit.event.entity.ProjectileLaunchEvent;
 import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.scheduler.BukkitTask;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 
 @Service
@@ -31,7 +45,28 @@ public class ProjectileManager extends Manager {
     @Setter
     @ConfigSetting
     private boolean chunkLoadCleanupEnabled = true;
+    @Getter
+    @ConfigSetting
+    private int sweepPeriod = 5 * 60 * 20;  // Ticks per full sweep of all loaded chunks; 0 disables
     private BukkitTask projectileCleanupTask;
+    private BukkitTask sweepTask;
+    private final ChunkSweeper sweeper = new ChunkSweeper();
+    private final List<Chunk> loadedChunks = new ArrayList<>();
+    private BukkitTask loadedChunksTask;
+
+    // Projectiles and fireworks are removed when their chunk loads, unless chunkLoadCleanupEnabled is set.
+    private static final boolean[] REMOVE_ON_LOAD = new boolean[EntityType.values().length];
+
+    static {
+        for (EntityType type : EntityType.values()) {
+            Class<?> entityClass = type.getEntityClass();
+            REMOVE_ON_LOAD[type.ordinal()] = entityClass != null && (Projectile.class.isAssignableFrom(entityClass) || Firework.class.isAssignableFrom(entityClass));
+        }
+    }
+    private AgeWheel ageWheel;
+    private BukkitTask ageWheelTask;
+    private AgeTable ageTable = AgeTable.defaults();
+    private Map<String, AgeTable> worldAgeTables = Collections.emptyMap();
 
     public ProjectileManager() {
         super("MTMbcHJvamVjdGlsZQo=");
@@ -43,9 +78,47 @@ public class ProjectileManager extends Manager {
         resetProjectileCleanupTask();
     }
 
+    @ConfigSettingSetter
+    public void setSweepPeriod(int value) {
+        sweepPeriod = value;
+        resetSweepTask();
+    }
+
+    @Override
+    public void onConfig(FileConfiguration config) {
+        Consumer<String> warn = message -> getLogger().warning(String.format("%s: %s", getConfigPath(), message));
+
+        ageTable = AgeTable.defaults().with(config.getConfigurationSection(getConfigPath() + ".maxAges"), warn);
+
+        Map<String, AgeTable> worldAgeTables = new HashMap<>();
+        ConfigurationSection worlds = config.getConfigurationSection(getConfigPath() + ".worlds");
+        if (worlds != null) {
+            for (String world : worlds.getKeys(false)) {
+                worldAgeTables.put(world, ageTable.with(worlds.getConfigurationSection(world + ".maxAges"), warn));
+            }
+        }
+        this.worldAgeTables = worldAgeTables;
+
+        super.onConfig(config);
+
+        // The age wheel may have been built from the previous tables.  One that's still pending will use the new ones.
+        if (ageWheel != null) {
+            resetProjectileCleanupTask();
+        }
+    }
+
+    private int getLongestMaxAge() {
+        int longest = ageTable.getLongest();
+        for (AgeTable table : worldAgeTables.values()) {
+            longest = Math.max(longest, table.getLongest());
+        }
+        return longest;
+    }
+
     @Override
     protected void onInit() {
         resetProjectileCleanupTask();
+        resetSweepTask();
         super.onInit();
     }
 
@@ -55,33 +128,85 @@ public class ProjectileManager extends Manager {
             projectileCleanupTask.cancel();
             projectileCleanupTask = null;
         }
+        if (ageWheelTask != null) {
+            ageWheelTask.cancel();
+            ageWheelTask = null;
+        }
+        ageWheel = null;
+
+        if (sweepTask != null) {
+            sweepTask.cancel();
+            sweepTask = null;
+        }
+        sweeper.clear();
+
+        if (loadedChunksTask != null) {
+            loadedChunksTask.cancel();
+            loadedChunksTask = null;
+        }
+        loadedChunks.clear();
 
         super.onDeinit();
     }
 
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onProjectileLaunch(ProjectileLaunchEvent event) {
+        track(event.getEntity());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntitySpawn(EntitySpawnEvent event) {
+        // Item and creature spawns are subclasses and arrive here too.  Launches are only a subclass on newer servers,
+        // and onProjectileLaunch already tracks them.
+        if (!((Event) event instanceof ProjectileLaunchEvent)) {
+            track(event.getEntity());
+        }
+    }
+
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onChunkLoad(ChunkLoadEvent event) {
-        if (!isEnabled() || isChunkLoadCleanupEnabled()) {
+        if (!isEnabled()) {
             return;
         }
 
-        Entity[] entities = event.getChunk().getEntities();
+        // Chunks loaded during a tick are all checked together at the start of the next one.
+        loadedChunks.add(event.getChunk());
+        if (loadedChunksTask == null) {
+            loadedChunksTask = getServer().getScheduler().runTask(getPlugin(), this::checkLoadedChunks);
+        }
+    }
 
-        getServer().getScheduler().runTaskAsynchronously(getPlugin(), () -> {
-            List<Entity> removing = new LinkedList<>();
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        // The wheel's entities and the sweeper's chunks would otherwise keep the world reachable.
+        if (ageWheel != null) {
+            ageWheel.forgetWorld(event.getWorld().getUID());
+        }
+        sweeper.forgetWorld(event.getWorld().getUID());
+    }
 
-            for (Entity entity : entities) {
-                if (entity instanceof Projectile || entity instanceof Firework) {
-                    removing.add(entity);
-                }
+    private void checkLoadedChunks() {
+        loadedChunksTask = null;
+        // chunkLoadCleanupEnabled has always skipped the purge rather than enabled it.
+        boolean cleanup = !isChunkLoadCleanupEnabled();
+
+        for (Chunk chunk : loadedChunks) {
+            if (!chunk.isLoaded()) {
+                continue;
             }
 
-            if (removing.isEmpty()) {
-                return;
+            for (Entity entity : chunk.getEntities()) {
+                if (cleanup && REMOVE_ON_LOAD[entity.getType().ordinal()]) {
+                    entity.remove();
+                    continue;
+                }
+
+                // Entities from a previous load of this chunk were dropped from the wheel when it unloaded.
+                track(entity);
             }
+        }
 
-            getServer().getScheduler().runTask(getPlugin(), () -> removing.forEach(Entity::remove));
-        });
+        loadedChunks.clear();
     }
 
     private void resetProjectileCleanupTask() {
@@ -89,163 +214,85 @@ public class ProjectileManager extends Manager {
             projectileCleanupTask.cancel();
             projectileCleanupTask = null;
         }
+        ageWheel = null;
 
-        if (!isEnabled()) {
+        if (!isEnabled() || projectileCleanupInterval <= 0) {
+            if (ageWheelTask != null) {
+                ageWheelTask.cancel();
+                ageWheelTask = null;
+            }
+            if (isEnabled()) {
+                getLogger().log(Level.INFO, "Projectile cleanup disabled.");
+            }
             return;
         }
 
-        if (projectileCleanupInterval > 0) {
-            getLogger().log(Level.INFO, String.format("Projectile cleanup running every %d ticks.", projectileCleanupInterval));
-            projectileCleanupTask = getServer().getScheduler().runTaskTimer(getPlugin(), this::cleanupProjectiles, projectileCleanupInterval, projectileCleanupInterval);
-        } else {
-            getLogger().log(Level.INFO, "Projectile cleanup disabled.");
+        // A reload resets this several times in a row (re-enabling, setters, onConfig), and filling the wheel means
+        // walking every entity, so it's filled once at the start of the next tick, from whatever tables are final.
+        if (ageWheelTask == null) {
+            ageWheelTask = getServer().getScheduler().runTask(getPlugin(), this::buildAgeWheel);
         }
+        projectileCleanupTask = getServer().getScheduler().runTaskTimer(getPlugin(), this::cleanupProjectiles, projectileCleanupInterval, projectileCleanupInterval);
     }
 
-    private void cleanupProjectiles() {
-        List<World> worlds = getServer().getWorlds();
-        final Entity[][] entities = new Entity[worlds.size()][];
-
-        for (int w = 0; w < worlds.size(); w++) {
-            List<Entity> entityList = worlds.get(w).getEntities();
-            entities[w] = entityList.toArray(new Entity[entityList.size()]);
-        }
-
-        getServer().getScheduler().runTaskAsynchronously(getPlugin(), () -> {
-            final List<Entity> removalQueue = new LinkedList<>();
-
-            for (Entity[] we : entities) {
-                for (Entity entity : we) {
-                    int maxAge;
-
-                    switch (entity.getType()) {
-                        case ARMOR_STAND:
-                        case BLAZE:
-                        case BOAT:
-                        case CAVE_SPIDER:
-                        case CHICKEN:
-                        case COMPLEX_PART:
-                        case COW:
-                        case CREEPER:
-                        case ENDER_CRYSTAL:
-                        case ENDER_DRAGON:
-                        case ENDER_SIGNAL:
-                        case ENDERMAN:
-                        case ENDERMITE:
-                        case GIANT:
-                        case GUARDIAN:
-                        case HORSE:
-                        case IRON_GOLEM:
-                        case ITEM_FRAME:
-                        case LEASH_HITCH:
-                        case LIGHTNING:
-                        case MAGMA_CUBE:
-                        case MINECART:
-                        case MINECART_CHEST:
-                        case MINECART_COMMAND:
-                        case MINECART_FURNACE:
-                        case MINECART_HOPPER:
-                        case MINECART_MOB_SPAWNER:
-                        case MINECART_TNT:
-                        case MUSHROOM_COW:
-                        case OCELOT:
-                        case PAINTING:
-                        case PIG:
-                        case PIG_ZOMBIE:
-                        case PLAYER:
-                        case RABBIT:
-                        case SHEEP:
-                        case SILVERFISH:
-                        case SKELETON:
-                        case SLIME:
-                        case SNOWMAN:
-                        case SPIDER:
-                        case SQUID:
-                        case VILLAGER:
-                        case WEATHER:
-                        case WITCH:
-                        case WITHER:
-                        case WOLF:
-                        case ZOMBIE:
-                            continue;
-
-                        case FALLING_BLOCK:
-                        case PRIMED_TNT:
-                            maxAge = 30 * 20;
-                            break;
-
-                        case FIREWORK:
-                            maxAge = 45 * 20;
-                            break;
-
-                        case GHAST:
-                        case BAT:
-                            maxAge = 10 * 60 * 20;
-                            break;
-
-                        case DROPPED_ITEM:
-                        case EXPERIENCE_ORB:
-                            maxAge = 8 * 60 * 20;
-                            break;
-
-                        case ARROW:
-                        case EGG:
-                        case ENDER_PEARL:
-                        case FIREBALL:
-                        case FISHING_HOOK:
-                        case SMALL_FIREBALL:
-                        case SNOWBALL:
-                        case SPLASH_POTION:
-                        case THROWN_EXP_BOTTLE:
-                        case WITHER_SKULL:
-                            maxAge = 20 * 20;
-                            break;
-
-                        case UNKNOWN:
-                        default:
-                            // >= 1.9
-                            switch (entity.getType().name()) {
-                                case "SHULKER":
-                                    continue;
-
-                                case "AREA_EFFECT_CLOUD":
-                                    maxAge = 60 * 20;
-                                    break;
-
-                                case "SHULKER_BULLET":
-                                case "SPECTRAL_ARROW":
-                                    maxAge = 20 * 20;
-                                    break;
-
-                                default:
-                                    if (entity instanceof Creature && "CraftCreature".equals(entity.getClass().getSimpleName())) {
-                                        // This happens occasionally, for some weird reason.  What sort of creature is it?
-                                        // We'll never know.  A placeholder?
-                                        continue;
-                                    }
-
-                                    getLogger().log(Level.WARNING, "Unknown entity type: " + entity.getClass().getCanonicalName());
-
-                                    if (entity instanceof Projectile) {
-                                        maxAge = 20 * 20;
-                                        break;
-                                    } else {
-                                        continue;
-                                    }
-                            }
-                            break;
-                    }
-
-                    if (entity.getTicksLived() > maxAge) {
-                        removalQueue.add(entity);
-                    }
-                }
+    private void buildAgeWheel() {
+        ageWheelTask = null;
+        getLogger().log(Level.INFO, String.format("Projectile cleanup running every %d ticks.", projectileCleanupInterval));
+
+        int resolution = (int) Math.min(projectileCleanupInterval, Integer.MAX_VALUE);
+        ageWheel = new AgeWheel(resolution, getLongestMaxAge());
+        for (World world : getServer().getWorlds()) {
+            for (Entity entity : world.getEntities()) {
+                track(entity);
             }
+        }
+    }
+
+    private void resetSweepTask() {
+        if (sweepTask != null) {
+            sweepTask.cancel();
+            sweepTask = null;
+        }
+        sweeper.clear();
 
-            getServer().getScheduler().callSyncMethod(getPlugin(), () -> {
-                removalQueue.forEach(Entity::remove);
-                return null;
-            });
+        if (isEnabled() && sweepPeriod > 0) {
+            sweepTask = getServer().getScheduler().runTaskTimer(getPlugin(), this::sweep, 1, 1);
+        }
+    }
+
+    /**
+     * Catches aged entities the age wheel never heard about, e.g. ones added without a spawn event.
+     */
+    private void sweep() {
+        sweeper.sweep(getServer(), sweepPeriod, chunk -> {
+            for (Entity entity : chunk.getEntities()) {
+                int maxAge = getMaxAge(entity);
+                if (maxAge != AgeTable.NO_MAX_AGE && entity.getTicksLived() > maxAge) {
+                    entity.remove();
+                }
+            }
         });
     }
+
+    private void track(Entity entity) {
+        if (ageWheel == null || !isEnabled()) {
+            return;
+        }
+
+        int maxAge = getMaxAge(entity);
+        if (maxAge != AgeTable.NO_MAX_AGE) {
+            ageWheel.add(entity, maxAge);
+        }
+    }
+
+    private void cleanupProjectiles() {
+        if (ageWheel != null) {
+            ageWheel.advance(Entity::remove);
+        }
+    }
+
+    private int getMaxAge(Entity entity) {
+        AgeTable table = worldAgeTables.isEmpty() ? ageTable : worldAgeTables.getOrDefault(entity.getWorld().getName(), ageTable);
+        return table.get(entity.getType());
+    }
 }
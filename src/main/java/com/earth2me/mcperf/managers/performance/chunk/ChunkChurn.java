@@ -0,0 +1,67 @@
+package com.earth2me.mcperf.managers.performance.chunk;
+
+import com.earth2me.mcperf.util.RollingCounter;
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Rolling per-world chunk load/unload counters, plus a tally of which plugins have been caught cancelling unloads.
+ * Times are in milliseconds.  Main thread only.
+ */
+public final class ChunkChurn {
+    @Getter
+    private final int windowSeconds;
+    private final Map<UUID, WorldChurn> worlds = new LinkedHashMap<>();
+    private final Map<String, Integer> cancellers = new HashMap<>();
+
+    public ChunkChurn(int windowSeconds) {
+        this.windowSeconds = windowSeconds;
+    }
+
+    public WorldChurn getWorld(UUID worldId, String worldName) {
+        WorldChurn churn = worlds.get(worldId);
+        if (churn == null) {
+            churn = new WorldChurn(worldId, worldName, windowSeconds);
+            worlds.put(worldId, churn);
+        }
+        return churn;
+    }
+
+    public void recordCanceller(String plugin) {
+        cancellers.merge(plugin, 1, Integer::sum);
+    }
+
+    public Map<String, Integer> getCancellers() {
+        return Collections.unmodifiableMap(cancellers);
+    }
+
+    public void forgetWorld(UUID worldId) {
+        worlds.remove(worldId);
+    }
+
+    @Getter
+    public static final class WorldChurn {
+        private final UUID worldId;
+        private final String worldName;
+        private final RollingCounter loads;
+        private final RollingCounter unloads;
+        private final RollingCounter reloads;
+        private final RollingCounter cancelledUnloads;
+        private final RollingCounter failedUnloads;
+
+        private WorldChurn(UUID worldId, String worldName, int windowSeconds) {
+            this.worldId = worldId;
+            this.worldName = worldName;
+            this.loads = new RollingCounter(windowSeconds);
+            this.unloads = new RollingCounter(windowSeconds);
+            this.reloads = new RollingCounter(windowSeconds);
+            this.cancelledUnloads = new RollingCounter(windowSeconds);
+            this.failedUnloads = new RollingCounter(windowSeconds);
+        }
+    }
+}
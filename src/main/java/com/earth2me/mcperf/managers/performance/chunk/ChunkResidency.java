@@ -0,0 +1,112 @@
+package com.earth2me.mcperf.managers.performance.chunk;
+
+import com.earth2me.mcperf.util.ChunkKey;
+import com.earth2me.mcperf.util.LongObjectHashMap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Load history of chunks: when each was last viewed and unloaded, and how often it has been loaded recently.
+ * History outlives the chunk itself so that reloads can be recognised; {@link #prune(long)} discards it once a chunk
+ * has stayed unloaded long enough.  Times are in milliseconds.  Main thread only.
+ */
+public final class ChunkResidency {
+    private final Map<UUID, LongObjectHashMap<Entry>> worlds = new HashMap<>();
+
+    LongObjectHashMap<Entry> getWorld(UUID worldId) {
+        LongObjectHashMap<Entry> entries = worlds.get(worldId);
+        if (entries == null) {
+            entries = new LongObjectHashMap<>();
+            worlds.put(worldId, entries);
+        }
+        return entries;
+    }
+
+    /**
+     * @return when the chunk was last unloaded, or {@code 0} if we have no record of it being unloaded
+     */
+    public long onLoad(UUID worldId, int chunkX, int chunkZ, long now) {
+        LongObjectHashMap<Entry> entries = getWorld(worldId);
+        long key = ChunkKey.of(chunkX, chunkZ);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(key, entry);
+        }
+
+        long lastUnloaded = entry.loaded ? 0 : entry.lastUnloaded;
+        entry.loaded = true;
+        entry.loads++;
+        // Give freshly loaded chunks the full idle timeout before they become eligible for unloading.
+        entry.lastViewed = now;
+        return lastUnloaded;
+    }
+
+    public void onUnload(UUID worldId, int chunkX, int chunkZ, long now) {
+        LongObjectHashMap<Entry> entries = worlds.get(worldId);
+        Entry entry = entries == null ? null : entries.get(ChunkKey.of(chunkX, chunkZ));
+        if (entry != null) {
+            entry.loaded = false;
+            entry.lastUnloaded = now;
+            entry.failedUnloads = 0;
+        }
+    }
+
+    public void onUnloadFailed(UUID worldId, int chunkX, int chunkZ) {
+        LongObjectHashMap<Entry> entries = worlds.get(worldId);
+        Entry entry = entries == null ? null : entries.get(ChunkKey.of(chunkX, chunkZ));
+        if (entry != null) {
+            entry.failedUnloads++;
+        }
+    }
+
+    /**
+     * Counts loaded chunks whose last {@code attempts} forced unloads in a row have all failed or been cancelled.
+     */
+    public int countStuck(UUID worldId, int attempts) {
+        LongObjectHashMap<Entry> entries = worlds.get(worldId);
+        if (entries == null) {
+            return 0;
+        }
+
+        int[] stuck = {0};
+        entries.forEachValue(entry -> {
+            if (entry.loaded && entry.failedUnloads >= attempts) {
+                stuck[0]++;
+            }
+        });
+        return stuck[0];
+    }
+
+    /**
+     * Forgets chunks that have been unloaded since before {@code before}.
+     */
+    public void prune(long before) {
+        for (LongObjectHashMap<Entry> entries : worlds.values()) {
+            for (long key : entries.keys()) {
+                Entry entry = entries.get(key);
+                if (!entry.loaded && entry.lastUnloaded < before) {
+                    entries.remove(key);
+                }
+            }
+        }
+    }
+
+    public void forgetWorld(UUID worldId) {
+        worlds.remove(worldId);
+    }
+
+    public void clear() {
+        worlds.clear();
+    }
+
+    static final class Entry {
+        long lastViewed;
+        long lastUnloaded;
+        int loads;
+        int failedUnloads;
+        boolean loaded;
+    }
+}
@@ -0,0 +1,48 @@
+package com.earth2me.mcperf.managers.performance.chunk;
+
+import org.bukkit.Chunk;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Hopper;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
+
+/**
+ * Rough estimate of how much a loaded chunk costs to tick, so the heaviest idle chunks can be unloaded first.  Chunks
+ * holding something a player evidently cares about are protected instead.  Main thread only.
+ */
+public final class ChunkWeigher {
+    public static final int PROTECTED = -1;
+
+    private static final int ENTITY_WEIGHT = 1;
+    private static final int TILE_ENTITY_WEIGHT = 2;
+    // Hoppers search for items above them every tick.
+    private static final int HOPPER_WEIGHT = 8;
+
+    private ChunkWeigher() {
+        throw new UnsupportedOperationException("Static class");
+    }
+
+    /**
+     * @return the chunk's weight, or {@link #PROTECTED} if it has named or leashed entities or occupied vehicles
+     */
+    public static int weigh(Chunk chunk) {
+        int weight = 0;
+
+        for (Entity entity : chunk.getEntities()) {
+            if (entity.getCustomName() != null || entity.getPassenger() != null) {
+                return PROTECTED;
+            }
+            if (entity instanceof LivingEntity && ((LivingEntity) entity).isLeashed()) {
+                return PROTECTED;
+            }
+
+            weight += ENTITY_WEIGHT;
+        }
+
+        for (BlockState state : chunk.getTileEntities()) {
+            weight += state instanceof Hopper ? HOPPER_WEIGHT : TILE_ENTITY_WEIGHT;
+        }
+
+        return weight;
+    }
+}
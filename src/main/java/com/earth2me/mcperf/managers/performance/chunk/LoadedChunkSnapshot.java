@@ -0,0 +1,48 @@
+package com.earth2me.mcperf.managers.performance.chunk;
+
+import lombok.Getter;
+import org.bukkit.Server;
+import org.bukkit.World;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Loaded chunks and viewers of every world, captured in a single pass on the main thread so that the unload planner
+ * can run off-thread without further round-trips.  Immutable once captured.
+ */
+@Getter
+public final class LoadedChunkSnapshot {
+    private final List<WorldChunks> worlds;
+    private final long capturedAt;  // ms
+    private final long captureNanos;
+
+    private LoadedChunkSnapshot(List<WorldChunks> worlds, long capturedAt, long captureNanos) {
+        this.worlds = worlds;
+        this.capturedAt = capturedAt;
+        this.captureNanos = captureNanos;
+    }
+
+    public static LoadedChunkSnapshot capture(Server server, Function<World, UnloadPolicy> policies, ChunkResidency residency) {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+
+        List<World> worlds = server.getWorlds();
+        List<WorldChunks> result = new ArrayList<>(worlds.size());
+        for (World world : worlds) {
+            result.add(WorldChunks.capture(world, policies.apply(world), residency, now));
+        }
+
+        return new LoadedChunkSnapshot(Collections.unmodifiableList(result), now, System.nanoTime() - start);
+    }
+
+    public int getChunkCount() {
+        int count = 0;
+        for (WorldChunks world : worlds) {
+            count += world.getChunks().length;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,237 @@
+package com.earth2me.mcperf.managers.performance.chunk;
+
+import com.earth2me.mcperf.util.ChunkKey;
+import com.earth2me.mcperf.util.LongHashSet;
+
+import java.util.Arrays;
+
+// Picks the loaded chunks outside every viewer's square, using a bitmap over the viewers' bounding box (or a hash set
+// when they're too spread out).  Buffers are reused between runs.  Not thread-safe.
+public final class UnloadPlanner {
+    private static final long MAX_BITMAP_BITS = 1L << 24;  // 2 MiB
+    private static final int UNREACHED = 0xFFFF;
+    private static final int NO_INDEX = -1;
+
+    private final LongHashSet keptSet = new LongHashSet();
+    private long[] bitmap = new long[0];
+    private int[] unload = new int[0];
+    private int unloadCount = 0;
+    // Key-to-index table, distances and BFS queue for ordering; reused like the buffers above.
+    private long[] indexKeys = new long[0];
+    private int[] indexValues = new int[0];
+    private int[] distances = new int[0];
+    private int[] queue = new int[0];
+
+    public int plan(long[] chunks, int chunkCount, long[] viewers, int viewerCount, int radius) {
+        if (unload.length < chunkCount) {
+            unload = new int[chunkCount];
+        }
+        unloadCount = 0;
+
+        if (viewerCount == 0) {
+            for (int i = 0; i < chunkCount; i++) {
+                unload[unloadCount++] = i;
+            }
+            return unloadCount;
+        }
+
+        int minX = Integer.MAX_VALUE;
+        int minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxZ = Integer.MIN_VALUE;
+        for (int i = 0; i < viewerCount; i++) {
+            int x = ChunkKey.x(viewers[i]);
+            int z = ChunkKey.z(viewers[i]);
+            minX = Math.min(minX, x);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxZ = Math.max(maxZ, z);
+        }
+        minX -= radius;
+        minZ -= radius;
+        maxX += radius;
+        maxZ += radius;
+
+        long width = (long) maxX - minX + 1;
+        long height = (long) maxZ - minZ + 1;
+        if (width * height <= MAX_BITMAP_BITS) {
+            planBitmap(chunks, chunkCount, viewers, viewerCount, radius, minX, minZ, maxX, maxZ, (int) width, (int) height);
+        } else {
+            planSet(chunks, chunkCount, viewers, viewerCount, radius);
+        }
+
+        return unloadCount;
+    }
+
+    // Idle chunks from the last plan, least often loaded first, then farthest from the kept chunks.
+    public long[] getUnloadOrder(WorldChunks world, long idleBefore) {
+        long[] chunks = world.getChunks();
+        long[] lastViewed = world.getLastViewed();
+        int[] loads = world.getLoads();
+
+        computeDistances(chunks, chunks.length);
+
+        long[] order = new long[unloadCount];
+        int count = 0;
+        for (int i = 0; i < unloadCount; i++) {
+            int index = unload[i];
+            if (lastViewed[index] >= idleBefore) {
+                continue;
+            }
+
+            int distance = distances[index];
+            order[count++] = (long) Math.min(loads[index], 0x7FFF) << 48 | (long) (0xFFFF - distance) << 32 | index;
+        }
+        Arrays.sort(order, 0, count);
+
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = chunks[(int) order[i]];
+        }
+        return keys;
+    }
+
+    // Breadth-first from every kept chunk at once through the loaded ones, so it's O(chunks) however many viewers.
+    private void computeDistances(long[] chunks, int chunkCount) {
+        if (distances.length < chunkCount) {
+            distances = new int[chunkCount];
+            queue = new int[chunkCount];
+        }
+        buildIndex(chunks, chunkCount);
+
+        // Everything the plan didn't pick for unloading is kept, and is where the search starts.
+        Arrays.fill(distances, 0, chunkCount, 0);
+        for (int i = 0; i < unloadCount; i++) {
+            distances[unload[i]] = UNREACHED;
+        }
+
+        int head = 0;
+        int tail = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            if (distances[i] == 0) {
+                queue[tail++] = i;
+            }
+        }
+
+        while (head < tail) {
+            int index = queue[head++];
+            int x = ChunkKey.x(chunks[index]);
+            int z = ChunkKey.z(chunks[index]);
+            int next = Math.min(distances[index] + 1, UNREACHED - 1);
+
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dz = -1; dz <= 1; dz++) {
+                    int neighbor = indexOf(ChunkKey.of(x + dx, z + dz));
+                    if (neighbor != NO_INDEX && distances[neighbor] == UNREACHED) {
+                        distances[neighbor] = next;
+                        queue[tail++] = neighbor;
+                    }
+                }
+            }
+        }
+    }
+
+    private void buildIndex(long[] chunks, int chunkCount) {
+        int capacity = Integer.highestOneBit(Math.max(chunkCount, 1) * 2 - 1) << 1;
+        if (indexKeys.length < capacity) {
+            indexKeys = new long[capacity];
+            indexValues = new int[capacity];
+        }
+        Arrays.fill(indexValues, NO_INDEX);
+
+        int mask = indexKeys.length - 1;
+        for (int i = 0; i < chunkCount; i++) {
+            int slot = slot(chunks[i], mask);
+            while (indexValues[slot] != NO_INDEX) {
+                slot = (slot + 1) & mask;
+            }
+            indexKeys[slot] = chunks[i];
+            indexValues[slot] = i;
+        }
+    }
+
+    private int indexOf(long key) {
+        int mask = indexKeys.length - 1;
+        for (int slot = slot(key, mask); indexValues[slot] != NO_INDEX; slot = (slot + 1) & mask) {
+            if (indexKeys[slot] == key) {
+                return indexValues[slot];
+            }
+        }
+        return NO_INDEX;
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32) & mask;
+    }
+
+    private void planBitmap(long[] chunks, int chunkCount, long[] viewers, int viewerCount, int radius, int minX, int minZ, int maxX, int maxZ, int width, int height) {
+        int words = (int) (((long) width * height + 63) >>> 6);
+        if (bitmap.length < words) {
+            bitmap = new long[words];
+        } else {
+            Arrays.fill(bitmap, 0, words, 0);
+        }
+
+        int side = radius * 2 + 1;
+        for (int i = 0; i < viewerCount; i++) {
+            int x0 = ChunkKey.x(viewers[i]) - radius - minX;
+            int z0 = ChunkKey.z(viewers[i]) - radius - minZ;
+            for (int row = z0; row < z0 + side; row++) {
+                int from = row * width + x0;
+                setRange(from, from + side);
+            }
+        }
+
+        for (int i = 0; i < chunkCount; i++) {
+            int x = ChunkKey.x(chunks[i]);
+            int z = ChunkKey.z(chunks[i]);
+            if (x < minX || x > maxX || z < minZ || z > maxZ) {
+                unload[unloadCount++] = i;
+                continue;
+            }
+
+            int bit = (z - minZ) * width + (x - minX);
+            if ((bitmap[bit >>> 6] & (1L << bit)) == 0) {
+                unload[unloadCount++] = i;
+            }
+        }
+    }
+
+    private void setRange(int from, int to) {
+        int fromWord = from >>> 6;
+        int toWord = (to - 1) >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+
+        if (fromWord == toWord) {
+            bitmap[fromWord] |= firstMask & lastMask;
+            return;
+        }
+
+        bitmap[fromWord] |= firstMask;
+        for (int i = fromWord + 1; i < toWord; i++) {
+            bitmap[i] = -1L;
+        }
+        bitmap[toWord] |= lastMask;
+    }
+
+    private void planSet(long[] chunks, int chunkCount, long[] viewers, int viewerCount, int radius) {
+        keptSet.clear();
+        for (int i = 0; i < viewerCount; i++) {
+            int vx = ChunkKey.x(viewers[i]);
+            int vz = ChunkKey.z(viewers[i]);
+            for (int x = vx - radius; x <= vx + radius; x++) {
+                for (int z = vz - radius; z <= vz + radius; z++) {
+                    keptSet.add(ChunkKey.of(x, z));
+                }
+            }
+        }
+
+        for (int i = 0; i < chunkCount; i++) {
+            if (!keptSet.contains(chunks[i])) {
+                unload[unloadCount++] = i;
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.earth2me.mcperf.managers.performance.chunk;
+
+import lombok.Value;
+import org.bukkit.configuration.ConfigurationSection;
+
+@Value
+public class UnloadPolicy {
+    // Chunks within this many chunks of a viewer are kept.
+    int radius;
+    // Worlds with fewer loaded chunks are left alone; -1 estimates it from the player count, 0 always cleans up.
+    int threshold;
+    // Seconds a chunk must go unviewed before it can be unloaded.
+    int idleTime;
+    // Whether the spawn chunks count as a viewer.
+    boolean keepSpawn;
+
+    /**
+     * Applies whatever {@code section} overrides on top of this policy.
+     */
+    public UnloadPolicy with(ConfigurationSection section) {
+        if (section == null) {
+            return this;
+        }
+
+        return new UnloadPolicy(
+                section.getInt("radius", radius),
+                section.getInt("threshold", threshold),
+                section.getInt("idleTime", idleTime),
+                section.getBoolean("keepSpawn", keepSpawn)
+        );
+    }
+}
@@ -0,0 +1,145 @@
+package com.earth2me.mcperf.managers.performance.chunk;
+
+import com.earth2me.mcperf.util.ChunkKey;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+// Chunks waiting to be force-unloaded, spread across ticks.  Worlds take turns, and the heaviest of the next few
+// chunks in each world's latest plan goes first.
+public final class UnloadQueue {
+    private static final int UNWEIGHED = Integer.MIN_VALUE;
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final LinkedHashMap<UUID, Batch> batches = new LinkedHashMap<>();
+    private int pending = 0;
+
+    public int getPending() {
+        return pending;
+    }
+
+    public boolean isEmpty() {
+        return pending == 0;
+    }
+
+    public void replace(UUID worldId, long[] keys) {
+        forgetWorld(worldId);
+        if (keys.length > 0) {
+            batches.put(worldId, new Batch(worldId, keys));
+            pending += keys.length;
+        }
+    }
+
+    public void forgetWorld(UUID worldId) {
+        Batch batch = batches.remove(worldId);
+        if (batch != null) {
+            pending -= batch.remaining();
+        }
+    }
+
+    // Always offers at least one chunk.  Rejected and declined chunks leave the queue without counting.
+    public int drain(int maxChunks, long budgetNanos, int lookahead, Weigher weigher, Unloader unloader) {
+        long start = System.nanoTime();
+        int unloaded = 0;
+        int offered = 0;
+
+        while (!batches.isEmpty() && unloaded < maxChunks && (offered++ == 0 || System.nanoTime() - start < budgetNanos)) {
+            Iterator<Map.Entry<UUID, Batch>> iterator = batches.entrySet().iterator();
+            Batch batch = iterator.next().getValue();
+            iterator.remove();
+
+            int remaining = batch.remaining();
+            long key = batch.pickHeaviest(Math.max(1, lookahead), weigher);
+            pending -= remaining - batch.remaining();
+            if (key != NONE && unloader.unload(batch.worldId, ChunkKey.x(key), ChunkKey.z(key))) {
+                unloaded++;
+            }
+
+            // Move to the back so worlds alternate.
+            if (batch.remaining() > 0) {
+                batches.put(batch.worldId, batch);
+            }
+        }
+
+        return unloaded;
+    }
+
+    public void clear() {
+        batches.clear();
+        pending = 0;
+    }
+
+    @FunctionalInterface
+    public interface Weigher {
+        // Negative to leave the chunk loaded for now.
+        int weigh(UUID worldId, int chunkX, int chunkZ);
+    }
+
+    @FunctionalInterface
+    public interface Unloader {
+        boolean unload(UUID worldId, int chunkX, int chunkZ);
+    }
+
+    private static final class Batch {
+        final UUID worldId;
+        final long[] keys;
+        final int[] weights;
+        int next = 0;
+
+        Batch(UUID worldId, long[] keys) {
+            this.worldId = worldId;
+            this.keys = keys;
+            this.weights = new int[keys.length];
+            Arrays.fill(weights, UNWEIGHED);
+        }
+
+        int remaining() {
+            return keys.length - next;
+        }
+
+        // Earliest wins ties; NONE if every chunk in the window was rejected.
+        long pickHeaviest(int lookahead, Weigher weigher) {
+            int best = -1;
+            int end = Math.min(keys.length, next + lookahead);
+
+            for (int i = next; i < end; i++) {
+                if (weights[i] == UNWEIGHED) {
+                    weights[i] = weigher.weigh(worldId, ChunkKey.x(keys[i]), ChunkKey.z(keys[i]));
+                }
+
+                if (weights[i] < 0) {
+                    // Drop it by moving it to the consumed part of the array.
+                    swap(i, next++);
+                    if (best == next - 1) {
+                        best = i;
+                    }
+                    continue;
+                }
+
+                if (best < 0 || weights[i] > weights[best]) {
+                    best = i;
+                }
+            }
+
+            if (best < 0) {
+                return NONE;
+            }
+
+            swap(best, next);
+            return keys[next++];
+        }
+
+        private void swap(int i, int j) {
+            long key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+
+            int weight = weights[i];
+            weights[i] = weights[j];
+            weights[j] = weight;
+        }
+    }
+}
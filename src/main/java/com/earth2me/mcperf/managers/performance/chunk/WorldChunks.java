@@ -0,0 +1,98 @@
+package com.earth2me.mcperf.managers.performance.chunk;
+
+import com.earth2me.mcperf.util.ChunkKey;
+import com.earth2me.mcperf.util.LongObjectHashMap;
+import lombok.Getter;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Loaded chunks and viewer positions of one world, as packed {@link ChunkKey}s, along with the world's
+ * {@link UnloadPolicy}.  The spawn chunk counts as a viewer if the policy keeps spawn loaded.  Each chunk also carries
+ * a copy of its {@link ChunkResidency} history.
+ * <p>
+ * Must be captured on the main thread; immutable afterwards.  Callers must not modify the returned arrays.
+ */
+@Getter
+public final class WorldChunks {
+    private final UUID worldId;
+    private final String worldName;
+    private final UnloadPolicy policy;
+    private final long[] chunks;
+    private final long[] lastViewed;  // ms
+    private final int[] loads;
+    private final long[] viewers;
+    private final int playerCount;
+
+    private WorldChunks(UUID worldId, String worldName, UnloadPolicy policy, long[] chunks, long[] lastViewed, int[] loads, long[] viewers, int playerCount) {
+        this.worldId = worldId;
+        this.worldName = worldName;
+        this.policy = policy;
+        this.chunks = chunks;
+        this.lastViewed = lastViewed;
+        this.loads = loads;
+        this.viewers = viewers;
+        this.playerCount = playerCount;
+    }
+
+    static WorldChunks capture(World world, UnloadPolicy policy, ChunkResidency residency, long now) {
+        LongObjectHashMap<ChunkResidency.Entry> entries = residency.getWorld(world.getUID());
+        Chunk[] loaded = world.getLoadedChunks();
+        long[] chunks = new long[loaded.length];
+        long[] lastViewed = new long[loaded.length];
+        int[] loads = new int[loaded.length];
+
+        for (int i = 0; i < loaded.length; i++) {
+            int chunkX = loaded[i].getX();
+            int chunkZ = loaded[i].getZ();
+            long key = ChunkKey.of(chunkX, chunkZ);
+
+            ChunkResidency.Entry entry = entries.get(key);
+            if (entry == null) {
+                // Loaded before we started tracking.
+                residency.onLoad(world.getUID(), chunkX, chunkZ, now);
+                entry = entries.get(key);
+            }
+            if (world.isChunkInUse(chunkX, chunkZ)) {
+                entry.lastViewed = now;
+            }
+
+            chunks[i] = key;
+            lastViewed[i] = entry.lastViewed;
+            loads[i] = entry.loads;
+        }
+
+        List<Player> players = world.getPlayers();
+        long[] viewers = new long[players.size() + 1];
+        int count = 0;
+
+        Location location = world.getSpawnLocation();
+        if (policy.isKeepSpawn()) {
+            viewers[count++] = ChunkKey.of(location.getBlockX() >> 4, location.getBlockZ() >> 4);
+        }
+
+        for (Player player : players) {
+            player.getLocation(location);
+            if (world.equals(location.getWorld())) {
+                viewers[count++] = ChunkKey.of(location.getBlockX() >> 4, location.getBlockZ() >> 4);
+            }
+        }
+
+        return new WorldChunks(
+                world.getUID(),
+                world.getName(),
+                policy,
+                chunks,
+                lastViewed,
+                loads,
+                count == viewers.length ? viewers : Arrays.copyOf(viewers, count),
+                players.size()
+        );
+    }
+}
@@ -0,0 +1,93 @@
+package com.earth2me.mcperf.managers.performance.entity;
+
+import com.earth2me.mcperf.util.ChunkKey;
+import com.earth2me.mcperf.util.LongObjectHashMap;
+import org.bukkit.Chunk;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Defers work on newly loaded chunks so it can be spread across ticks.  A chunk is queued at most once, and chunks that
+ * unload before their turn are skipped.  Main thread only.
+ */
+public final class ChunkScanQueue {
+    private final Map<UUID, LongObjectHashMap<Chunk>> pendingByWorld = new HashMap<>();
+    // May contain stale entries for chunks that have since unloaded; the pending map is authoritative.
+    private final ArrayDeque<Chunk> queue = new ArrayDeque<>();
+    private int pending = 0;
+
+    public int getPending() {
+        return pending;
+    }
+
+    public void add(Chunk chunk) {
+        UUID worldId = chunk.getWorld().getUID();
+        LongObjectHashMap<Chunk> chunks = pendingByWorld.get(worldId);
+        if (chunks == null) {
+            chunks = new LongObjectHashMap<>();
+            pendingByWorld.put(worldId, chunks);
+        }
+
+        if (chunks.put(ChunkKey.of(chunk.getX(), chunk.getZ()), chunk) == null) {
+            pending++;
+        }
+        queue.add(chunk);
+    }
+
+    public void remove(Chunk chunk) {
+        LongObjectHashMap<Chunk> chunks = pendingByWorld.get(chunk.getWorld().getUID());
+        if (chunks != null && chunks.remove(ChunkKey.of(chunk.getX(), chunk.getZ())) != null) {
+            pending--;
+        }
+    }
+
+    public void forgetWorld(UUID worldId) {
+        LongObjectHashMap<Chunk> chunks = pendingByWorld.remove(worldId);
+        if (chunks != null) {
+            pending -= chunks.size();
+        }
+    }
+
+    /**
+     * Hands queued chunks to {@code scanner} until the queue is empty or {@code budgetNanos} has elapsed.  At least one
+     * chunk is scanned per call so the queue always makes progress.
+     */
+    public int drain(long budgetNanos, Consumer<Chunk> scanner) {
+        long start = System.nanoTime();
+        int scanned = 0;
+
+        while (pending > 0 && (scanned == 0 || System.nanoTime() - start < budgetNanos)) {
+            Chunk chunk = queue.poll();
+            if (chunk == null) {
+                break;
+            }
+
+            LongObjectHashMap<Chunk> chunks = pendingByWorld.get(chunk.getWorld().getUID());
+            long key = ChunkKey.of(chunk.getX(), chunk.getZ());
+            if (chunks == null || chunks.get(key) != chunk) {
+                continue;
+            }
+
+            chunks.remove(key);
+            pending--;
+            scanner.accept(chunk);
+            scanned++;
+        }
+
+        if (pending == 0) {
+            queue.clear();
+        }
+
+        return scanned;
+    }
+
+    public void clear() {
+        pendingByWorld.clear();
+        queue.clear();
+        pending = 0;
+    }
+}
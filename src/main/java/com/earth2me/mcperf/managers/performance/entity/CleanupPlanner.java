@@ -0,0 +1,87 @@
+package com.earth2me.mcperf.managers.performance.entity;
+
+import org.bukkit.entity.EntityType;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Chooses which entities to remove from an {@link EntitySnapshot}.  Works purely on the snapshot's primitive arrays,
+ * so it's safe to run off the main thread.
+ */
+public final class CleanupPlanner {
+    // Leave a few entities behind so farms don't look like they were wiped by a bug.
+    private static final int SPARED = 5;
+    private static final int SPARE_THRESHOLD = 10;
+
+    private final EntitySnapshot snapshot;
+    private final int limit;
+    private EntityType topType;
+
+    public CleanupPlanner(EntitySnapshot snapshot, int limit) {
+        this.snapshot = snapshot;
+        this.limit = limit;
+    }
+
+    public EntityType getTopType() {
+        return topType;
+    }
+
+    /**
+     * @return snapshot indices of the entities to remove, oldest first
+     */
+    public int[] plan() {
+        final EntitySnapshot s = snapshot;
+        EntityType[] entityTypes = EntityType.values();
+
+        int[] counts = new int[entityTypes.length];
+        for (int i = 0; i < s.size; i++) {
+            counts[s.types[i]]++;
+        }
+
+        // Sort by priority ascending, then by count descending.
+        Integer[] ranked = IntStream.range(0, counts.length)
+                .filter(t -> counts[t] > 0)
+                .boxed()
+                .sorted((a, b) -> s.priorities[a] == s.priorities[b] ? Integer.compare(counts[b], counts[a]) : Integer.compare(s.priorities[a], s.priorities[b]))
+                .toArray(Integer[]::new);
+
+        if (ranked.length == 0) {
+            return new int[0];
+        }
+
+        topType = entityTypes[ranked[0]];
+
+        boolean[] problem = new boolean[counts.length];
+        int removing = 0;
+        for (int r = 0; r < ranked.length; r++) {
+            if (r > 0 && s.size - removing <= limit) {
+                break;
+            }
+
+            problem[ranked[r]] = true;
+            removing += counts[ranked[r]];
+        }
+
+        // Named and leashed entities are almost always someone's pet or decoration.
+        int[] victims = IntStream.range(0, s.size)
+                .parallel()
+                .filter(i -> problem[s.types[i]] && !s.named[i] && !s.leashed[i])
+                .toArray();
+
+        // Oldest first: pack (ticksLived, index) so a primitive sort orders by age.
+        long[] byAge = new long[victims.length];
+        for (int v = 0; v < victims.length; v++) {
+            byAge[v] = ((long) s.ticksLived[victims[v]] << 32) | victims[v];
+        }
+        Arrays.parallelSort(byAge);
+
+        int count = victims.length >= SPARE_THRESHOLD ? victims.length - SPARED : victims.length;
+        int[] result = new int[count];
+        for (int v = 0; v < count; v++) {
+            result[v] = (int) byAge[byAge.length - 1 - v];
+        }
+
+        return result;
+    }
+}
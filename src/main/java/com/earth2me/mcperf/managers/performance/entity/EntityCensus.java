@@ -0,0 +1,165 @@
+package com.earth2me.mcperf.managers.performance.entity;
+
+import com.earth2me.mcperf.util.ChunkKey;
+import com.earth2me.mcperf.util.LongObjectHashMap;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+
+import java.util.Collection;
+
+/**
+ * Live per-chunk entity counts for a single world, broken down by {@link EntityGroup}.
+ * <p>
+ * Doubles as an index of the world's loaded chunks keyed by packed coordinates, so nearby lookups address chunks
+ * directly instead of filtering {@link World#getLoadedChunks()}.
+ * <p>
+ * Counts are adjusted incrementally from events, and chunks are periodically recounted via
+ * {@link #loadChunk(Chunk, Entity[])} to correct drift caused by entities that wander between chunks or disappear
+ * without firing an event (e.g., natural despawns).  A full {@link #rebuild(World)} only happens on creation.  Main
+ * thread only.
+ */
+public final class EntityCensus {
+    private static final int GROUPS = EntityGroup.values().length;
+
+    private final LongObjectHashMap<Entry> chunks = new LongObjectHashMap<>();
+    private final int[] totals = new int[GROUPS];
+    // Reused to avoid allocating a Location per lookup.
+    private final Location location;
+
+    public EntityCensus(World world) {
+        this.location = new Location(world, 0, 0, 0);
+        rebuild(world);
+    }
+
+    public void add(Entity entity) {
+        adjust(entity, 1);
+    }
+
+    public void remove(Entity entity) {
+        adjust(entity, -1);
+    }
+
+    private void adjust(Entity entity, int delta) {
+        EntityGroup group = EntityGroup.of(entity);
+        if (group == null) {
+            return;
+        }
+
+        entity.getLocation(location);
+        Entry entry = chunks.get(ChunkKey.of(location.getBlockX() >> 4, location.getBlockZ() >> 4));
+        if (entry == null) {
+            // Chunk isn't tracked (not loaded yet, or already unloaded); it'll be counted when it loads.
+            return;
+        }
+
+        int[] counts = entry.counts;
+        int c = group.ordinal();
+        if (counts[c] + delta < 0) {
+            // Entity drifted in from another chunk; the next rebuild will sort it out.
+            return;
+        }
+
+        counts[c] += delta;
+        totals[c] += delta;
+    }
+
+    public void loadChunk(Chunk chunk, Entity[] entities) {
+        unloadChunk(chunk.getX(), chunk.getZ());
+
+        Entry entry = new Entry(chunk);
+        int[] counts = entry.counts;
+        for (Entity entity : entities) {
+            EntityGroup group = EntityGroup.of(entity);
+            if (group != null) {
+                counts[group.ordinal()]++;
+            }
+        }
+
+        chunks.put(ChunkKey.of(chunk.getX(), chunk.getZ()), entry);
+        for (int c = 0; c < GROUPS; c++) {
+            totals[c] += counts[c];
+        }
+    }
+
+    public void unloadChunk(int chunkX, int chunkZ) {
+        Entry entry = chunks.remove(ChunkKey.of(chunkX, chunkZ));
+        if (entry == null) {
+            return;
+        }
+
+        for (int c = 0; c < GROUPS; c++) {
+            totals[c] -= entry.counts[c];
+        }
+    }
+
+    public void rebuild(World world) {
+        chunks.clear();
+        for (int c = 0; c < GROUPS; c++) {
+            totals[c] = 0;
+        }
+
+        for (Chunk chunk : world.getLoadedChunks()) {
+            chunks.put(ChunkKey.of(chunk.getX(), chunk.getZ()), new Entry(chunk));
+        }
+
+        for (Entity entity : world.getEntities()) {
+            adjust(entity, 1);
+        }
+    }
+
+    public int count(int chunkX, int chunkZ, int radius, EntityGroup group) {
+        int c = group.ordinal();
+        int count = 0;
+
+        for (int x = chunkX - radius; x <= chunkX + radius; x++) {
+            for (int z = chunkZ - radius; z <= chunkZ + radius; z++) {
+                Entry entry = chunks.get(ChunkKey.of(x, z));
+                if (entry != null) {
+                    count += entry.counts[c];
+                }
+            }
+        }
+
+        return count;
+    }
+
+    public int total(EntityGroup group) {
+        return totals[group.ordinal()];
+    }
+
+    public void collectNearbyEntities(int chunkX, int chunkZ, int radius, Collection<Entity> out) {
+        for (int x = chunkX - radius; x <= chunkX + radius; x++) {
+            for (int z = chunkZ - radius; z <= chunkZ + radius; z++) {
+                Entry entry = chunks.get(ChunkKey.of(x, z));
+                if (entry == null || !entry.chunk.isLoaded()) {
+                    continue;
+                }
+
+                for (Entity entity : entry.chunk.getEntities()) {
+                    out.add(entity);
+                }
+            }
+        }
+    }
+
+    public void forEachChunk(ChunkVisitor visitor) {
+        chunks.forEachValue(entry -> visitor.visit(entry.chunk.getX(), entry.chunk.getZ(), entry.counts));
+    }
+
+    @FunctionalInterface
+    public interface ChunkVisitor {
+        // counts is indexed by EntityGroup ordinal and must not be modified.
+        void visit(int chunkX, int chunkZ, int[] counts);
+    }
+
+    private static final class Entry {
+        final Chunk chunk;
+        final int[] counts = new int[GROUPS];
+
+        Entry(Chunk chunk) {
+            this.chunk = chunk;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.earth2me.mcperf.managers.performance.entity;
+
+import org.bukkit.entity.*;
+
+public enum EntityGroup {
+    ITEM,
+    EXPERIENCE_ORB,
+    FALLING_BLOCK,
+    ARMOR_STAND,
+    MINECART,
+    PROJECTILE,
+    HOSTILE,
+    PASSIVE,
+    VEHICLE,
+    OTHER;
+
+    private static final EntityGroup[] BY_TYPE;
+
+    static {
+        EntityType[] types = EntityType.values();
+        BY_TYPE = new EntityGroup[types.length];
+
+        for (EntityType type : types) {
+            Class<? extends Entity> entityClass = type.getEntityClass();
+            BY_TYPE[type.ordinal()] = entityClass == null ? null : classify(entityClass, type);
+        }
+    }
+
+    public static boolean isIgnored(EntityType entityType) {
+        // Much faster than testing the contents of a list/set.
+        switch (entityType) {
+            case PLAYER:
+            case ITEM_FRAME:
+            case PAINTING:
+            case WEATHER:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    private static EntityGroup classify(Class<?> entityClass, EntityType type) {
+        // Order matters: minecarts, pigs, and horses are all vehicles, so the specific groups must be tested first.
+        if (Item.class.isAssignableFrom(entityClass)) {
+            return ITEM;
+        } else if (ExperienceOrb.class.isAssignableFrom(entityClass)) {
+            return EXPERIENCE_ORB;
+        } else if (FallingBlock.class.isAssignableFrom(entityClass)) {
+            return FALLING_BLOCK;
+        } else if (ArmorStand.class.isAssignableFrom(entityClass)) {
+            return ARMOR_STAND;
+        } else if (Minecart.class.isAssignableFrom(entityClass)) {
+            return MINECART;
+        } else if (Projectile.class.isAssignableFrom(entityClass) || Firework.class.isAssignableFrom(entityClass)) {
+            return PROJECTILE;
+        } else if (Monster.class.isAssignableFrom(entityClass) ||
+                Slime.class.isAssignableFrom(entityClass) ||
+                Ghast.class.isAssignableFrom(entityClass) ||
+                EnderDragon.class.isAssignableFrom(entityClass) ||
+                "SHULKER".equals(type.name())) {  // >= 1.9
+            return HOSTILE;
+        } else if (LivingEntity.class.isAssignableFrom(entityClass) && !HumanEntity.class.isAssignableFrom(entityClass)) {
+            return PASSIVE;
+        } else if (Vehicle.class.isAssignableFrom(entityClass)) {
+            return VEHICLE;
+        } else {
+            return OTHER;
+        }
+    }
+
+    public static EntityGroup of(EntityType type) {
+        EntityGroup group = BY_TYPE[type.ordinal()];
+        return group == null ? OTHER : group;
+    }
+
+    // Returns null for entities that never count against limits.
+    public static EntityGroup of(Entity entity) {
+        EntityType type = entity.getType();
+        if (isIgnored(type)) {
+            return null;
+        }
+
+        EntityGroup group = BY_TYPE[type.ordinal()];
+        // Types without a Bukkit class (e.g., UNKNOWN) fall back to inspecting the implementation.
+        return group == null ? classify(entity.getClass(), type) : group;
+    }
+}
@@ -0,0 +1,11 @@
+package com.earth2me.mcperf.managers.performance.entity;
+
+import lombok.Value;
+
+@Value
+public class EntityLimit {
+    int nearby;
+    int world;
+    // Cleanup removes groups with lower priority values first.
+    int priority;
+}
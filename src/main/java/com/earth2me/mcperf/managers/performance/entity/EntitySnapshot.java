@@ -0,0 +1,100 @@
+package com.earth2me.mcperf.managers.performance.entity;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.LivingEntity;
+
+import java.util.Collection;
+import java.util.UUID;
+import java.util.function.ToIntFunction;
+
+/**
+ * Point-in-time copy of the entity properties cleanup cares about, stored in primitive arrays.
+ * <p>
+ * Must be captured on the main thread.  Everything except {@link #getEntity(int)} is immutable afterwards and safe to
+ * read from any thread; the entity references themselves must only be touched on the main thread.
+ */
+public final class EntitySnapshot {
+    private final UUID worldId;
+    private final Entity[] entities;
+    final int size;
+    final int[] types;
+    final int[] chunkX;
+    final int[] chunkZ;
+    final int[] ticksLived;
+    final boolean[] named;
+    final boolean[] leashed;
+    // Indexed by EntityType ordinal.
+    final int[] priorities;
+
+    private EntitySnapshot(UUID worldId, int capacity) {
+        this.worldId = worldId;
+        this.entities = new Entity[capacity];
+        this.types = new int[capacity];
+        this.chunkX = new int[capacity];
+        this.chunkZ = new int[capacity];
+        this.ticksLived = new int[capacity];
+        this.named = new boolean[capacity];
+        this.leashed = new boolean[capacity];
+        this.priorities = new int[EntityType.values().length];
+        this.size = capacity;
+    }
+
+    public static EntitySnapshot capture(World world, Collection<Entity> entities, ToIntFunction<EntityType> priority) {
+        int count = 0;
+        for (Entity entity : entities) {
+            if (!EntityGroup.isIgnored(entity.getType())) {
+                count++;
+            }
+        }
+
+        EntitySnapshot snapshot = new EntitySnapshot(world.getUID(), count);
+        Location location = new Location(world, 0, 0, 0);
+        int i = 0;
+
+        for (Entity entity : entities) {
+            EntityType type = entity.getType();
+            if (EntityGroup.isIgnored(type)) {
+                continue;
+            }
+
+            entity.getLocation(location);
+            snapshot.entities[i] = entity;
+            snapshot.types[i] = type.ordinal();
+            snapshot.chunkX[i] = location.getBlockX() >> 4;
+            snapshot.chunkZ[i] = location.getBlockZ() >> 4;
+            snapshot.ticksLived[i] = entity.getTicksLived();
+            snapshot.named[i] = entity.getCustomName() != null;
+            snapshot.leashed[i] = entity instanceof LivingEntity && ((LivingEntity) entity).isLeashed();
+            i++;
+        }
+
+        for (EntityType type : EntityType.values()) {
+            snapshot.priorities[type.ordinal()] = priority.applyAsInt(type);
+        }
+
+        return snapshot;
+    }
+
+    public UUID getWorldId() {
+        return worldId;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Entity getEntity(int index) {
+        return entities[index];
+    }
+
+    public int getChunkX(int index) {
+        return chunkX[index];
+    }
+
+    public int getChunkZ(int index) {
+        return chunkZ[index];
+    }
+}
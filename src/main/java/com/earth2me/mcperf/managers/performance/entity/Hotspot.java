@@ -0,0 +1,14 @@
+package com.earth2me.mcperf.managers.performance.entity;
+
+import lombok.Value;
+
+@Value
+public class Hotspot {
+    String world;
+    int chunkX;
+    int chunkZ;
+    int total;
+    // Indexed by EntityGroup ordinal.
+    int[] counts;
+    double growthPerMinute;
+}
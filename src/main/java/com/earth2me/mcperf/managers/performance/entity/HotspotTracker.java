@@ -0,0 +1,114 @@
+package com.earth2me.mcperf.managers.performance.entity;
+
+import com.earth2me.mcperf.util.ChunkKey;
+import com.earth2me.mcperf.util.LongObjectHashMap;
+import org.bukkit.World;
+
+import java.util.*;
+
+/**
+ * Samples {@link EntityCensus} counts over time to find the chunks with the most entities and how fast they're
+ * growing.  Reads only the census, so a sample costs one pass over the loaded chunks, not the entities.  Main thread
+ * only.
+ */
+public final class HotspotTracker {
+    // Weight of the newest growth measurement in the moving average.
+    private static final double SMOOTHING = 0.3;
+
+    private final Map<UUID, LongObjectHashMap<Sample>> samplesByWorld = new HashMap<>();
+    private PriorityQueue<Hotspot> top;
+    private List<Hotspot> hotspots = Collections.emptyList();
+    private long lastSampleNanos = 0;
+    private double minutes;
+    private int generation = 0;
+    private int size;
+
+    public List<Hotspot> getHotspots() {
+        return hotspots;
+    }
+
+    public void begin(int size) {
+        long now = System.nanoTime();
+        minutes = lastSampleNanos == 0 ? 0 : (now - lastSampleNanos) / 60e9;
+        lastSampleNanos = now;
+        generation++;
+
+        this.size = size;
+        top = new PriorityQueue<>(Math.max(1, size), Comparator.comparingInt(Hotspot::getTotal));
+    }
+
+    public void sample(World world, EntityCensus census) {
+        LongObjectHashMap<Sample> samples = samplesByWorld.get(world.getUID());
+        if (samples == null) {
+            samples = new LongObjectHashMap<>();
+            samplesByWorld.put(world.getUID(), samples);
+        }
+
+        final LongObjectHashMap<Sample> worldSamples = samples;
+        census.forEachChunk((chunkX, chunkZ, counts) -> {
+            int total = 0;
+            for (int count : counts) {
+                total += count;
+            }
+
+            long key = ChunkKey.of(chunkX, chunkZ);
+            Sample sample = worldSamples.get(key);
+            if (total == 0) {
+                if (sample != null) {
+                    worldSamples.remove(key);
+                }
+                return;
+            }
+
+            if (sample == null) {
+                sample = new Sample();
+                worldSamples.put(key, sample);
+            } else if (minutes > 0 && sample.generation == generation - 1) {
+                double growth = (total - sample.total) / minutes;
+                sample.growth = sample.measured ? SMOOTHING * growth + (1 - SMOOTHING) * sample.growth : growth;
+                sample.measured = true;
+            }
+
+            sample.total = total;
+            sample.generation = generation;
+
+            if (size > 0 && (top.size() < size || top.peek().getTotal() < total)) {
+                if (top.size() >= size) {
+                    top.poll();
+                }
+                top.add(new Hotspot(world.getName(), chunkX, chunkZ, total, counts.clone(), sample.growth));
+            }
+        });
+
+        // Forget chunks that have since unloaded.
+        for (long key : samples.keys()) {
+            if (samples.get(key).generation != generation) {
+                samples.remove(key);
+            }
+        }
+    }
+
+    public void finish() {
+        List<Hotspot> result = new ArrayList<>(top);
+        result.sort((a, b) -> Integer.compare(b.getTotal(), a.getTotal()));
+        hotspots = Collections.unmodifiableList(result);
+        top = null;
+    }
+
+    public void forget(World world) {
+        samplesByWorld.remove(world.getUID());
+    }
+
+    public void clear() {
+        samplesByWorld.clear();
+        hotspots = Collections.emptyList();
+        lastSampleNanos = 0;
+    }
+
+    private static final class Sample {
+        int generation;
+        int total;
+        double growth;
+        boolean measured;
+    }
+}
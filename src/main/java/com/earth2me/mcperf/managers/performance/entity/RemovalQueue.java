@@ -0,0 +1,112 @@
+package com.earth2me.mcperf.managers.performance.entity;
+
+import com.earth2me.mcperf.util.ChunkKey;
+import com.earth2me.mcperf.util.LongObjectHashMap;
+import org.bukkit.entity.Entity;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Spreads entity removals across ticks.  Removals are grouped by chunk and drained worst chunk first, under a
+ * per-tick time budget.  Main thread only.
+ */
+public final class RemovalQueue {
+    private final Map<UUID, LongObjectHashMap<Batch>> batchesByWorld = new HashMap<>();
+    // Largest batch first.  Batches are re-inserted whenever they grow, so the ordering stays accurate.
+    private final PriorityQueue<Batch> queue = new PriorityQueue<>((a, b) -> Integer.compare(b.remaining(), a.remaining()));
+    private int pending = 0;
+
+    public int getPending() {
+        return pending;
+    }
+
+    public boolean isEmpty() {
+        return pending == 0;
+    }
+
+    public void submit(EntitySnapshot snapshot, int[] indices) {
+        for (int i : indices) {
+            submit(snapshot.getWorldId(), ChunkKey.of(snapshot.getChunkX(i), snapshot.getChunkZ(i)), snapshot.getEntity(i));
+        }
+    }
+
+    private void submit(UUID worldId, long key, Entity entity) {
+        LongObjectHashMap<Batch> batches = batchesByWorld.get(worldId);
+        if (batches == null) {
+            batches = new LongObjectHashMap<>();
+            batchesByWorld.put(worldId, batches);
+        }
+
+        Batch batch = batches.get(key);
+        if (batch == null) {
+            batch = new Batch(worldId, key);
+            batches.put(key, batch);
+        } else {
+            queue.remove(batch);
+        }
+
+        batch.entities.add(entity);
+        queue.add(batch);
+        pending++;
+    }
+
+    /**
+     * Removes entities until the queue is empty or {@code budgetNanos} has elapsed.  At least one entity is removed
+     * per call so that the queue always makes progress.
+     *
+     * @return the number of entities handed to {@code remover}
+     */
+    public int drain(long budgetNanos, Consumer<Entity> remover) {
+        if (pending == 0) {
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        int removed = 0;
+
+        do {
+            Batch batch = queue.peek();
+            Entity entity = batch.entities.get(batch.cursor++);
+            pending--;
+
+            if (batch.remaining() == 0) {
+                queue.poll();
+                LongObjectHashMap<Batch> batches = batchesByWorld.get(batch.worldId);
+                batches.remove(batch.key);
+                if (batches.isEmpty()) {
+                    batchesByWorld.remove(batch.worldId);
+                }
+            }
+
+            if (entity.isValid()) {
+                remover.accept(entity);
+                removed++;
+            }
+        } while (pending > 0 && System.nanoTime() - start < budgetNanos);
+
+        return removed;
+    }
+
+    public void clear() {
+        batchesByWorld.clear();
+        queue.clear();
+        pending = 0;
+    }
+
+    private static final class Batch {
+        final UUID worldId;
+        final long key;
+        final List<Entity> entities = new ArrayList<>();
+        int cursor = 0;
+
+        Batch(UUID worldId, long key) {
+            this.worldId = worldId;
+            this.key = key;
+        }
+
+        int remaining() {
+            return entities.size() - cursor;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.earth2me.mcperf.managers.performance.entity;
+
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.ExperienceOrb;
+import org.bukkit.entity.Item;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Folds newly spawned drops into existing nearby ones so that farms don't pile up thousands of identical entities.
+ */
+public final class SpawnMerger {
+    // Plugins use huge pickup delays for display items (e.g., shop signs); never merge loot into those.
+    private static final int MAX_TARGET_PICKUP_DELAY = 20 * 60;
+
+    private SpawnMerger() {
+        throw new UnsupportedOperationException("Static class");
+    }
+
+    /**
+     * @return true if the entity's contents were merged into another entity, and it should be removed
+     */
+    public static boolean merge(Entity entity, double radius) {
+        if (entity instanceof Item) {
+            return mergeItem((Item) entity, radius);
+        } else if (entity instanceof ExperienceOrb) {
+            return mergeOrb((ExperienceOrb) entity, radius);
+        } else {
+            return false;
+        }
+    }
+
+    private static boolean mergeItem(Item item, double radius) {
+        ItemStack stack = item.getItemStack();
+        int max = stack.getMaxStackSize();
+        if (stack.getAmount() >= max || item.getCustomName() != null) {
+            return false;
+        }
+
+        for (Entity nearby : item.getNearbyEntities(radius, radius, radius)) {
+            if (!(nearby instanceof Item) || nearby == item || !nearby.isValid() || nearby.getCustomName() != null) {
+                continue;
+            }
+
+            Item target = (Item) nearby;
+            if (target.getPickupDelay() > MAX_TARGET_PICKUP_DELAY) {
+                continue;
+            }
+
+            ItemStack targetStack = target.getItemStack();
+            int amount = targetStack.getAmount() + stack.getAmount();
+            if (amount > max || !targetStack.isSimilar(stack)) {
+                continue;
+            }
+
+            targetStack.setAmount(amount);
+            target.setItemStack(targetStack);
+            // Keep the younger age, as vanilla merging does, so fresh loot doesn't inherit an old stack's despawn timer.
+            if (item.getTicksLived() < target.getTicksLived()) {
+                target.setTicksLived(Math.max(1, item.getTicksLived()));
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    private static boolean mergeOrb(ExperienceOrb orb, double radius) {
+        for (Entity nearby : orb.getNearbyEntities(radius, radius, radius)) {
+            if (!(nearby instanceof ExperienceOrb) || nearby == orb || !nearby.isValid()) {
+                continue;
+            }
+
+            ExperienceOrb target = (ExperienceOrb) nearby;
+            long experience = (long) target.getExperience() + orb.getExperience();
+            if (experience > Short.MAX_VALUE) {
+                // Orb values are saved as shorts.
+                continue;
+            }
+
+            target.setExperience((int) experience);
+            return true;
+        }
+
+        return false;
+    }
+}
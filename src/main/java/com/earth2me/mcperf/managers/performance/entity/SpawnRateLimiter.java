@@ -0,0 +1,92 @@
+package com.earth2me.mcperf.managers.performance.entity;
+
+import com.earth2me.mcperf.util.LongObjectHashMap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Token buckets that throttle spawn bursts per chunk and per responsible player.  Count limits only react once a chunk
+ * is already full; these catch machines that spawn and kill entities in a loop.  Main thread only.
+ */
+public final class SpawnRateLimiter {
+    private final Map<UUID, LongObjectHashMap<Bucket>> chunkBuckets = new HashMap<>();
+    private final Map<UUID, Bucket> playerBuckets = new HashMap<>();
+
+    public boolean tryChunk(UUID worldId, long chunkKey, double rate, int burst) {
+        if (rate <= 0) {
+            return true;
+        }
+
+        LongObjectHashMap<Bucket> buckets = chunkBuckets.get(worldId);
+        if (buckets == null) {
+            buckets = new LongObjectHashMap<>();
+            chunkBuckets.put(worldId, buckets);
+        }
+
+        Bucket bucket = buckets.get(chunkKey);
+        if (bucket == null) {
+            bucket = new Bucket(burst);
+            buckets.put(chunkKey, bucket);
+        }
+
+        return bucket.tryAcquire(rate, burst);
+    }
+
+    public boolean tryPlayer(UUID playerId, double rate, int burst) {
+        if (rate <= 0) {
+            return true;
+        }
+
+        Bucket bucket = playerBuckets.get(playerId);
+        if (bucket == null) {
+            bucket = new Bucket(burst);
+            playerBuckets.put(playerId, bucket);
+        }
+
+        return bucket.tryAcquire(rate, burst);
+    }
+
+    public void forgetChunk(UUID worldId, long chunkKey) {
+        LongObjectHashMap<Bucket> buckets = chunkBuckets.get(worldId);
+        if (buckets != null) {
+            buckets.remove(chunkKey);
+        }
+    }
+
+    public void forgetWorld(UUID worldId) {
+        chunkBuckets.remove(worldId);
+    }
+
+    public void forgetPlayer(UUID playerId) {
+        playerBuckets.remove(playerId);
+    }
+
+    public void clear() {
+        chunkBuckets.clear();
+        playerBuckets.clear();
+    }
+
+    private static final class Bucket {
+        double tokens;
+        long lastNanos = System.nanoTime();
+
+        Bucket(int burst) {
+            tokens = burst;
+        }
+
+        boolean tryAcquire(double rate, int burst) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastNanos) * rate / 1e9);
+            lastNanos = now;
+
+            if (tokens < 1) {
+                return false;
+            }
+
+            tokens--;
+            return true;
+        }
+    }
+}
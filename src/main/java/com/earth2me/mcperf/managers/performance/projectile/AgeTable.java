@@ -0,0 +1,130 @@
+package com.earth2me.mcperf.managers.performance.projectile;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.Projectile;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Maximum ages in ticks by entity type.  Type names are resolved once when the table is built, so lookups are a
+ * single array read.  Projectile types without an age of their own get the projectile age.
+ */
+public final class AgeTable {
+    public static final int NO_MAX_AGE = -1;
+
+    private static final int UNSET = Integer.MIN_VALUE;
+    private static final String PROJECTILE_KEY = "projectile";
+    private static final Map<String, Integer> DEFAULT_MAX_AGES = new LinkedHashMap<>();
+
+    static {
+        DEFAULT_MAX_AGES.put(PROJECTILE_KEY, 20 * 20);
+        DEFAULT_MAX_AGES.put("FALLING_BLOCK", 30 * 20);
+        DEFAULT_MAX_AGES.put("PRIMED_TNT", 30 * 20);
+        DEFAULT_MAX_AGES.put("FIREWORK", 45 * 20);
+        DEFAULT_MAX_AGES.put("GHAST", 10 * 60 * 20);
+        DEFAULT_MAX_AGES.put("BAT", 10 * 60 * 20);
+        DEFAULT_MAX_AGES.put("DROPPED_ITEM", 8 * 60 * 20);
+        DEFAULT_MAX_AGES.put("EXPERIENCE_ORB", 8 * 60 * 20);
+        DEFAULT_MAX_AGES.put("AREA_EFFECT_CLOUD", 60 * 20);
+    }
+
+    // Ages set explicitly per type, or UNSET.
+    private final int[] configured;
+    private final int projectileMaxAge;
+    private final int[] maxAges;
+
+    private AgeTable(int[] configured, int projectileMaxAge) {
+        this.configured = configured;
+        this.projectileMaxAge = projectileMaxAge;
+        this.maxAges = new int[configured.length];
+
+        for (EntityType type : EntityType.values()) {
+            int i = type.ordinal();
+            if (configured[i] != UNSET) {
+                maxAges[i] = configured[i];
+            } else {
+                Class<?> entityClass = type.getEntityClass();
+                maxAges[i] = entityClass != null && Projectile.class.isAssignableFrom(entityClass) ? projectileMaxAge : NO_MAX_AGE;
+            }
+        }
+    }
+
+    public static AgeTable defaults() {
+        int[] configured = new int[EntityType.values().length];
+        Arrays.fill(configured, UNSET);
+
+        int projectileMaxAge = NO_MAX_AGE;
+        for (Map.Entry<String, Integer> entry : DEFAULT_MAX_AGES.entrySet()) {
+            if (PROJECTILE_KEY.equals(entry.getKey())) {
+                projectileMaxAge = entry.getValue();
+                continue;
+            }
+
+            // Some types only exist on newer servers.
+            EntityType type = find(entry.getKey());
+            if (type != null) {
+                configured[type.ordinal()] = entry.getValue();
+            }
+        }
+
+        return new AgeTable(configured, projectileMaxAge);
+    }
+
+    /**
+     * Applies the ages in {@code section}, which maps entity type names, or {@code projectile}, to ages in ticks.  A
+     * negative age means the type is never removed for its age.
+     *
+     * @param warn receives a message for each name that isn't an entity type on this server
+     */
+    public AgeTable with(ConfigurationSection section, Consumer<String> warn) {
+        if (section == null) {
+            return this;
+        }
+
+        int[] configured = this.configured.clone();
+        int projectileMaxAge = this.projectileMaxAge;
+
+        for (String key : section.getKeys(false)) {
+            int age = Math.max(NO_MAX_AGE, section.getInt(key, NO_MAX_AGE));
+
+            if (PROJECTILE_KEY.equalsIgnoreCase(key)) {
+                projectileMaxAge = age;
+                continue;
+            }
+
+            EntityType type = find(key);
+            if (type == null) {
+                warn.accept(String.format("Ignoring max age for %s, which isn't an entity type on this server", key));
+                continue;
+            }
+
+            configured[type.ordinal()] = age;
+        }
+
+        return new AgeTable(configured, projectileMaxAge);
+    }
+
+    private static EntityType find(String name) {
+        try {
+            return EntityType.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public int get(EntityType type) {
+        return maxAges[type.ordinal()];
+    }
+
+    public int getLongest() {
+        int longest = NO_MAX_AGE;
+        for (int maxAge : maxAges) {
+            longest = Math.max(longest, maxAge);
+        }
+        return longest;
+    }
+}
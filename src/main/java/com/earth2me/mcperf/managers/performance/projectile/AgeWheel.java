@@ -0,0 +1,159 @@
+package com.earth2me.mcperf.managers.performance.projectile;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel of entities that should be removed once they reach a maximum age.  Each slot covers
+ * {@code resolution} ticks; advancing the wheel only looks at the slot that has come due, so the cost of expiry is
+ * proportional to the number of entities expiring rather than the number alive.
+ * <p>
+ * Ages are checked again when an entity comes due, since entities don't age while their chunk is unloaded.  Entities
+ * that have died, or whose chunk is no longer loaded, are dropped; callers re-register entities when their chunk loads
+ * again.  Entities are held weakly so that ones that are gone needn't wait until they come due to be collected.  Main
+ * thread only.
+ */
+public final class AgeWheel {
+    private final Slot[] slots;
+    private final int mask;
+    private final int resolution;
+    private final Slot rescheduled = new Slot();
+    // Reused to avoid allocating a Location per entity.
+    private final Location location = new Location(null, 0, 0, 0);
+    private long now = 0;  // Ticks
+
+    /**
+     * @param resolution ticks between calls to {@link #advance(Consumer)}
+     * @param horizon    the longest age that should fit without wrapping around the wheel
+     */
+    public AgeWheel(int resolution, int horizon) {
+        this.resolution = Math.max(1, resolution);
+
+        int count = 16;
+        while ((long) count * this.resolution <= horizon) {
+            count <<= 1;
+        }
+
+        slots = new Slot[count];
+        for (int i = 0; i < count; i++) {
+            slots[i] = new Slot();
+        }
+        mask = count - 1;
+    }
+
+    public void add(Entity entity, int maxAge) {
+        schedule(entity, maxAge, now + Math.max(1, maxAge - entity.getTicksLived() + 1));
+    }
+
+    private void schedule(Entity entity, int maxAge, long expiry) {
+        schedule(new WeakReference<>(entity), maxAge, expiry);
+    }
+
+    private void schedule(WeakReference<Entity> entity, int maxAge, long expiry) {
+        slots[(int) (expiry / resolution) & mask].add(entity, maxAge, expiry);
+    }
+
+    /**
+     * Moves the wheel forward by one slot and hands every entity in it that has outlived its maximum age to
+     * {@code expired}.
+     *
+     * @return the number of expired entities
+     */
+    public int advance(Consumer<Entity> expired) {
+        Slot slot = slots[(int) (now / resolution) & mask];
+        now += resolution;
+        int count = 0;
+        int kept = 0;
+
+        for (int i = 0; i < slot.size; i++) {
+            WeakReference<Entity> reference = slot.entities[i];
+            int maxAge = slot.maxAges[i];
+            long expiry = slot.expiries[i];
+
+            if (expiry > now) {
+                // Due on a later turn of the wheel.
+                slot.set(kept++, reference, maxAge, expiry);
+                continue;
+            }
+
+            Entity entity = reference.get();
+            if (entity == null || !entity.isValid() || !isChunkLoaded(entity)) {
+                continue;
+            }
+
+            int remaining = maxAge - entity.getTicksLived();
+            if (remaining < 0) {
+                expired.accept(entity);
+                count++;
+            } else {
+                rescheduled.add(reference, maxAge, now + remaining + 1);
+            }
+        }
+        slot.truncate(kept);
+
+        for (int i = 0; i < rescheduled.size; i++) {
+            schedule(rescheduled.entities[i], rescheduled.maxAges[i], rescheduled.expiries[i]);
+        }
+        rescheduled.truncate(0);
+
+        return count;
+    }
+
+    private boolean isChunkLoaded(Entity entity) {
+        // Not every server marks entities invalid when their chunk unloads.  A stale copy left behind once the chunk
+        // loads again is harmless: it's no longer in the world, and nothing but this wheel keeps it reachable.
+        entity.getLocation(location);
+        boolean loaded = location.getWorld().isChunkLoaded(location.getBlockX() >> 4, location.getBlockZ() >> 4);
+        location.setWorld(null);
+        return loaded;
+    }
+
+    /**
+     * Drops every entity in the world, along with any that have already been collected.
+     */
+    public void forgetWorld(UUID worldId) {
+        for (Slot slot : slots) {
+            int kept = 0;
+            for (int i = 0; i < slot.size; i++) {
+                Entity entity = slot.entities[i].get();
+                if (entity != null && !entity.getWorld().getUID().equals(worldId)) {
+                    slot.set(kept++, slot.entities[i], slot.maxAges[i], slot.expiries[i]);
+                }
+            }
+            slot.truncate(kept);
+        }
+    }
+
+    private static final class Slot {
+        @SuppressWarnings("unchecked")
+        WeakReference<Entity>[] entities = new WeakReference[8];
+        int[] maxAges = new int[8];
+        long[] expiries = new long[8];
+        int size = 0;
+
+        void add(WeakReference<Entity> entity, int maxAge, long expiry) {
+            if (size == entities.length) {
+                entities = Arrays.copyOf(entities, size * 2);
+                maxAges = Arrays.copyOf(maxAges, size * 2);
+                expiries = Arrays.copyOf(expiries, size * 2);
+            }
+            set(size++, entity, maxAge, expiry);
+        }
+
+        void set(int i, WeakReference<Entity> entity, int maxAge, long expiry) {
+            entities[i] = entity;
+            maxAges[i] = maxAge;
+            expiries[i] = expiry;
+        }
+
+        void truncate(int newSize) {
+            Arrays.fill(entities, newSize, size, null);
+            size = newSize;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.earth2me.mcperf.util;
+
+/**
+ * Packs chunk coordinates into a single {@code long} so they can be used as primitive map keys.
+ */
+public final class ChunkKey {
+    private ChunkKey() {
+        throw new UnsupportedOperationException("Static class");
+    }
+
+    public static long of(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    public static int x(long key) {
+        return (int) (key >> 32);
+    }
+
+    public static int z(long key) {
+        return (int) key;
+    }
+}
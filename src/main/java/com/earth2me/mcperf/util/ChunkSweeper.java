@@ -0,0 +1,84 @@
+package com.earth2me.mcperf.util;
+
+import org.bukkit.Chunk;
+import org.bukkit.Server;
+import org.bukkit.World;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Visits every loaded chunk of every world once per cycle, a fixed slice per tick, so that a full sweep costs a small,
+ * constant amount each tick instead of one large spike.  The chunk list is captured at the start of each cycle;
+ * chunks that unload before their turn are skipped, and an unloaded world's chunks should be dropped with
+ * {@link #forgetWorld(UUID)} so they don't keep it reachable until the cycle ends.  Main thread only.
+ */
+public final class ChunkSweeper {
+    private final List<Chunk[]> worlds = new ArrayList<>();
+    private final List<UUID> worldIds = new ArrayList<>();
+    private int world = 0;
+    private int index = 0;
+    private int perTick = 0;
+
+    /**
+     * Visits the next slice of chunks, starting a new cycle if the last one has finished.
+     *
+     * @param period ticks a full cycle should take
+     */
+    public void sweep(Server server, int period, Consumer<Chunk> visitor) {
+        if (world >= worlds.size()) {
+            restart(server, period);
+        }
+
+        for (int remaining = perTick; remaining > 0 && world < worlds.size(); ) {
+            Chunk[] chunks = worlds.get(world);
+            if (chunks == null || index >= chunks.length) {
+                worlds.set(world++, null);
+                index = 0;
+                continue;
+            }
+
+            Chunk chunk = chunks[index];
+            chunks[index++] = null;
+            remaining--;
+
+            if (chunk.isLoaded()) {
+                visitor.accept(chunk);
+            }
+        }
+    }
+
+    private void restart(Server server, int period) {
+        worlds.clear();
+        worldIds.clear();
+        world = 0;
+        index = 0;
+
+        long total = 0;
+        for (World w : server.getWorlds()) {
+            Chunk[] chunks = w.getLoadedChunks();
+            worlds.add(chunks);
+            worldIds.add(w.getUID());
+            total += chunks.length;
+        }
+
+        perTick = (int) Math.max(1, (total + period - 1) / Math.max(1, period));
+    }
+
+    public void forgetWorld(UUID worldId) {
+        for (int i = world; i < worlds.size(); i++) {
+            if (worldIds.get(i).equals(worldId)) {
+                worlds.set(i, null);
+            }
+        }
+    }
+
+    public void clear() {
+        worlds.clear();
+        worldIds.clear();
+        world = 0;
+        index = 0;
+    }
+}
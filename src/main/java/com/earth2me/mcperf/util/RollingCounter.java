@@ -0,0 +1,52 @@
+package com.earth2me.mcperf.util;
+
+import java.util.Arrays;
+
+/**
+ * Counts events over a sliding window of whole seconds, using one bucket per second.  Times are in milliseconds.
+ * <p>
+ * Not thread-safe.
+ */
+public final class RollingCounter {
+    private final long[] counts;
+    private final long[] seconds;
+
+    public RollingCounter(int windowSeconds) {
+        if (windowSeconds < 1) {
+            throw new IllegalArgumentException("Window must be at least one second");
+        }
+
+        counts = new long[windowSeconds];
+        seconds = new long[windowSeconds];
+        Arrays.fill(seconds, Long.MIN_VALUE);
+    }
+
+    public int getWindowSeconds() {
+        return counts.length;
+    }
+
+    public void increment(long now) {
+        add(now, 1);
+    }
+
+    public void add(long now, long amount) {
+        long second = now / 1000;
+        int i = (int) Math.floorMod(second, (long) counts.length);
+        if (seconds[i] != second) {
+            seconds[i] = second;
+            counts[i] = 0;
+        }
+        counts[i] += amount;
+    }
+
+    public long sum(long now) {
+        long second = now / 1000;
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (seconds[i] > second - counts.length) {
+                total += counts[i];
+            }
+        }
+        return total;
+    }
+}